@@ -0,0 +1,108 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import info.martinmarinov.drivers.tools.io.CoalescingOutputStream;
+import info.martinmarinov.drivers.tools.io.RingBuffer;
+
+/**
+ * An additional consumer of the transport stream with its own set of pids and its own buffer,
+ * obtained from {@link DvbDevice#subscribe(int)}. Packets are delivered while the device
+ * is streaming through {@link DvbDevice#getTransportStream(DvbDevice.StreamCallback)}.
+ */
+public class DemuxSubscription implements Closeable {
+    private static final int OUT_STAGING_PACKETS = 64;
+    private static final long OUT_MAX_DELAY_MS = 100;
+
+    private final DvbDemux dvbDemux;
+    private final RingBuffer ring;
+    // Only used by the thread feeding the demux
+    private final CoalescingOutputStream out;
+
+    private volatile int[] pids = new int[0];
+    private volatile boolean allPids;
+
+    DemuxSubscription(DvbDemux dvbDemux, int ringCapacity) {
+        this.dvbDemux = dvbDemux;
+        this.ring = new RingBuffer(ringCapacity, RingBuffer.OverflowPolicy.DROP);
+        this.out = new CoalescingOutputStream(ring.getOutputStream(), OUT_STAGING_PACKETS * 188, OUT_MAX_DELAY_MS);
+    }
+
+    public void setPids(int... pids) {
+        this.pids = pids.clone();
+        this.allPids = false;
+        dvbDemux.updateRouting();
+    }
+
+    public void passAll() {
+        this.allPids = true;
+        dvbDemux.updateRouting();
+    }
+
+    public InputStream getInputStream() {
+        return ring.getInputStream();
+    }
+
+    /**
+     * @return number of batches dropped because this subscriber did not keep up
+     */
+    public long getOverflows() {
+        return ring.getOverflowCount();
+    }
+
+    @Override
+    public void close() {
+        dvbDemux.unsubscribe(this);
+        ring.close();
+    }
+
+    int[] getPids() {
+        return pids;
+    }
+
+    boolean isAllPids() {
+        return allPids;
+    }
+
+    // A subscriber that has closed its stream may still be routed to for a batch, it's not an error for the demux
+
+    void write(ByteBuffer buf, int offset) {
+        try {
+            out.write(buf, offset, 188);
+        } catch (IOException ignored) {}
+    }
+
+    void endOfBatch() {
+        try {
+            out.endOfBatch();
+        } catch (IOException ignored) {}
+    }
+
+    void flush() {
+        try {
+            out.flush();
+        } catch (IOException ignored) {}
+    }
+}
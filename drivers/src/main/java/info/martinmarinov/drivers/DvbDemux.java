@@ -21,40 +21,112 @@
 package info.martinmarinov.drivers;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import info.martinmarinov.drivers.psi.PsiEngine;
+import info.martinmarinov.drivers.psi.SptsRemuxer;
 import info.martinmarinov.drivers.tools.FastIntFilter;
-import info.martinmarinov.usbxfer.ByteSink;
-import info.martinmarinov.drivers.tools.io.NativePipe;
+import info.martinmarinov.drivers.tools.io.CoalescingOutputStream;
+import info.martinmarinov.drivers.tools.io.RingBuffer;
+import info.martinmarinov.usbxfer.ByteBufferSink;
 
-public class DvbDemux implements ByteSink,Closeable {
+import static info.martinmarinov.drivers.DvbException.ErrorCode.BAD_API_USAGE;
+
+public class DvbDemux implements ByteBufferSink,Closeable {
     private static final boolean DVB_DEMUX_FEED_ERR_PKTS = true;
     private static final boolean CHECK_PACKET_INTEGRITY = true;
-
-    private final int pktSize;
+    private static final int OUT_STAGING_PACKETS = 128;
+    private static final long OUT_MAX_DELAY_MS = 100;
+    // About a second of a 30 Mbit/s mux
+    private static final int DEFAULT_RING_CAPACITY = 4 * 1024 * 1024;
+    // After this many packets in a row where they were expected only the sync byte is checked
+    private static final int SYNC_LOCK_PACKETS = 5;
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final int DEFAULT_FULL_TS_ACCOUNTING_INTERVAL = 16;
+    // Plain, with a 4 byte timestamp before each packet (M2TS) and with 16 bytes of Reed-Solomon parity after it
+    private static final int[] PACKET_SIZES = {188, 192, 204};
+    // Number of sync bytes that have to repeat at a stride before the stride is taken as the packet size
+    private static final int DETECT_SYNCS = 5;
+    // One bit per subscription in the routing table
+    private static final int MAX_SUBSCRIPTIONS = 32;
+    // Stuffing
+    private static final int NULL_PID = 0x1FFF;
+    // How often the single program output repeats its PAT and PMT
+    private static final long SPTS_TABLE_INTERVAL_MS = 100;
+
+    private int pktSize;
     private final byte[] tsBuf = new byte[204];
-    private final NativePipe pipe;
-    private final OutputStream out;
+    // Packets stitched across calls or with an inverted sync byte are parsed from here
+    private final ByteBuffer tsBufView = ByteBuffer.wrap(tsBuf);
+    // The DataPump never waits for the consumer, if it stalls whole batches are spilled to disk, if enabled, or dropped and counted
+    private final RingBuffer ring;
+    // Accepted packets are staged so the ring sees one write per batch instead of one per packet
+    private final CoalescingOutputStream out;
     private final FastIntFilter filter = new FastIntFilter(0x1fff);
+    // Sees the table pids whatever the filter, so clients don't need to stream them
+    private final PsiEngine psiEngine = new PsiEngine();
+    private final SptsRemuxer remuxer = new SptsRemuxer(SPTS_TABLE_INTERVAL_MS);
 
     @SuppressWarnings("ConstantConditions")
     private final byte[] cntStorage = CHECK_PACKET_INTEGRITY ? new byte[(0x1fff / 2) + 1] : null;
+    // Pids whose continuity counter has been seen since the fast path last skipped the checks
+    private final long[] cntPrimed = new long[(0x1fff >> 6) + 1];
+
+    private final List<DemuxSubscription> subscriptions = new ArrayList<>();
+    // Rebuilt on every change so the data thread always sees a consistent table, null without subscriptions
+    private volatile Routing routing;
+    // Union of the pids of the subscriptions, null if one of them wants all pids. Guarded by subscriptions.
+    private int[] subscriptionPids = new int[0];
+    private volatile SubscriptionListener subscriptionListener;
 
     private int tsBufP = 0;
+    private int syncCount = 0;
     private int droppedUsbFps;
     private long lastUpdated;
     private boolean passFullTsStream = false;
-
+    private int fullTsAccountingInterval = DEFAULT_FULL_TS_ACCOUNTING_INTERVAL;
+    private int fullTsBatches;
+    private boolean fastPath;
+    private boolean cntStale;
+    private volatile boolean dropNullPackets;
+    private long batchPackets, batchNullPackets;
+    // Only written by the thread feeding the demux
+    private volatile long packetCount, nullPacketCount;
+    private volatile boolean resetPending;
+
+    /**
+     * The demux takes 188, 192 (timestamped) or 204 (with parity) byte packets. The size is detected
+     * from the input whenever the demux is not in sync.
+     */
     public static DvbDemux DvbDmxSwfilter() {
-        return new DvbDemux(188);
+        return DvbDmxSwfilter(DEFAULT_RING_CAPACITY);
+    }
+
+    /**
+     * @param ringCapacity how many bytes of output can be buffered for a slow consumer before dropping data
+     */
+    public static DvbDemux DvbDmxSwfilter(int ringCapacity) {
+        return new DvbDemux(188, ringCapacity);
+    }
+
+    /**
+     * @return the size of the packets in the input, each one is cut down to 188 bytes in the output
+     */
+    int getPacketSize() {
+        return pktSize;
     }
 
-    private DvbDemux(int pktSize) {
+    private DvbDemux(int pktSize, int ringCapacity) {
         this.pktSize = pktSize;
-        this.pipe = new NativePipe();
-        this.out = pipe.getOutputStream();
+        this.ring = new RingBuffer(ringCapacity, RingBuffer.OverflowPolicy.DROP);
+        this.out = new CoalescingOutputStream(ring.getOutputStream(), OUT_STAGING_PACKETS * 188, OUT_MAX_DELAY_MS);
         reset();
     }
 
@@ -67,54 +139,136 @@ public class DvbDemux implements ByteSink,Closeable {
         passFullTsStream = true;
     }
 
+    /**
+     * Must be called before the stream is started
+     */
+    void setFlushPolicy(CoalescingOutputStream.FlushPolicy flushPolicy) {
+        out.setFlushPolicy(flushPolicy);
+    }
+
+    PsiEngine getPsiEngine() {
+        return psiEngine;
+    }
+
+    /**
+     * Rewrites the PAT and PMT of the filtered output when it carries a single program
+     */
+    SptsRemuxer getRemuxer() {
+        return remuxer;
+    }
+
+    /**
+     * Whether to leave stuffing packets (pid 0x1FFF) out of all outputs. They are still counted.
+     */
+    void setDropNullPackets(boolean dropNullPackets) {
+        this.dropNullPackets = dropNullPackets;
+    }
+
+    /**
+     * @return number of packets received since the last reset, including stuffing
+     */
+    long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * @return number of stuffing packets received since the last reset, whether dropped or not
+     */
+    long getNullPacketCount() {
+        return nullPacketCount;
+    }
+
+    /**
+     * While the pid filter is disabled only one in this many input chunks gets the continuity
+     * checks, the rest are validated in bulk and written as whole runs. 1 checks every chunk.
+     */
+    void setFullTsAccountingInterval(int interval) {
+        if (interval < 1) throw new IllegalArgumentException("Interval must be at least 1");
+        fullTsAccountingInterval = interval;
+    }
+
     @Override
     public void consume(byte[] buf, int count) throws IOException {
-        int p = 0;
+        consume(ByteBuffer.wrap(buf, 0, count));
+    }
+
+    /**
+     * Parses the packets in place, only the packets that pass the filter are copied out of the buffer.
+     * Arrays passed to {@link #consume(byte[], int)} are wrapped and parsed the same way.
+     */
+    @Override
+    public void consume(ByteBuffer buf) throws IOException {
+        if (resetPending) resetStream();
+        int p = buf.position();
+        int count = buf.limit();
+        if (syncCount == 0 && tsBufP == 0) detectPacketSize(buf, p, count);
+        startBatch();
 
         if (tsBufP != 0) { /* tsbuf[0] is now 0x47. */
             int i = tsBufP;
             int j = pktSize - i;
-            if (count < j) {
-                System.arraycopy(buf, 0, tsBuf, i, count);
-                tsBufP += count;
+            if (count - p < j) {
+                buf.get(tsBuf, i, count - p);
+                tsBufP += count - p;
+                endOfBatch();
                 return;
             }
-            System.arraycopy(buf, 0, tsBuf, i, j);
+            buf.get(tsBuf, i, j);
             if ((tsBuf[0] & 0xFF) == 0x47) { /* double check */
-                swfilterPacket(tsBuf, 0);
+                swfilterPacket(tsBufView, 0);
+            } else {
+                syncCount = 0;
             }
             tsBufP = 0;
             p += j;
         }
 
         while (true) {
-            p = findNextPacket(buf, p, count);
             if (p >= count) {
                 break;
             }
+            if (syncCount < SYNC_LOCK_PACKETS || !isSync(buf.get(p))) {
+                int next = findNextPacket(buf, p, count);
+                if (next != p) syncCount = 0;
+                p = next;
+                if (p >= count) {
+                    break;
+                }
+            }
             if (count - p < pktSize) {
                 break;
             }
 
-            if (pktSize == 204 && (buf[p] & 0xFF) == 0xB8) {
-                System.arraycopy(buf, p, tsBuf, 0, 188);
+            if (fastPath && syncCount >= SYNC_LOCK_PACKETS) {
+                int end = writeAlignedRun(buf, p, count);
+                syncCount += (end - p) / 188;
+                p = end;
+                continue;
+            }
+
+            if (pktSize == 204 && (buf.get(p) & 0xFF) == 0xB8) {
+                buf.position(p);
+                buf.get(tsBuf, 0, 188);
                 tsBuf[0] = (byte) 0x47;
-                swfilterPacket(tsBuf, 0);
+                swfilterPacket(tsBufView, 0);
             } else {
                 swfilterPacket(buf, p);
             }
 
+            syncCount++;
             p += pktSize;
         }
 
         int i = count - p;
         if (i != 0) {
-            System.arraycopy(buf, p, tsBuf, 0, i);
+            buf.position(p);
+            buf.get(tsBuf, 0, i);
             tsBufP = i;
             if (pktSize == 204 && (tsBuf[0] & 0xFF) == 0xB8) {
                 tsBuf[0] = (byte) 0x47;
             }
         }
+        endOfBatch();
     }
 
     int getDroppedUsbFps() {
@@ -126,23 +280,93 @@ public class DvbDemux implements ByteSink,Closeable {
         return (int) Math.abs(fps);
     }
 
-    private int findNextPacket(byte[] buf, int pos, int count) {
-        int start = pos, lost;
+    /**
+     * Looks for sync bytes repeating at one of the known packet sizes and switches to it.
+     * Keeps the current size if the data is too short or nothing repeats.
+     */
+    private void detectPacketSize(ByteBuffer buf, int p, int count) {
+        int maxSize = PACKET_SIZES[PACKET_SIZES.length - 1];
+        for (int start = p; start < p + maxSize && start + maxSize * (DETECT_SYNCS - 1) < count; start++) {
+            for (int size : PACKET_SIZES) {
+                if (repeatsAt(buf, start, size)) {
+                    pktSize = size;
+                    return;
+                }
+            }
+        }
+    }
 
-        while (pos < count) {
-            if ((buf[pos] & 0xFF) == 0x47 ||
-                    (pktSize == 204 && (buf[pos] & 0xFF) == 0xB8)) {
-                break;
+    private static boolean repeatsAt(ByteBuffer buf, int start, int size) {
+        for (int i = 0; i < DETECT_SYNCS; i++) {
+            int b = buf.get(start + i * size) & 0xFF;
+            // Streams with parity invert every 8th sync byte
+            if (b != 0x47 && (size != 204 || b != 0xB8)) return false;
+        }
+        return true;
+    }
+
+    private void startBatch() throws IOException {
+        fastPath = false;
+        if (!passFullTsStream) remuxer.startBatch(out);
+        // Subscribers need every packet classified
+        if (!passFullTsStream || pktSize != 188 || routing != null) return;
+
+        if (++fullTsBatches < fullTsAccountingInterval) {
+            fastPath = true;
+            cntStale = true;
+        } else {
+            fullTsBatches = 0;
+            if (cntStale) {
+                // The counters missed the skipped packets, so the first packet of each pid only sets them again
+                Arrays.fill(cntPrimed, 0);
+                cntStale = false;
             }
-            pos++;
         }
+    }
+
+    /**
+     * Writes the packets starting at p for as long as they are in sync, only looking at the
+     * headers for transport errors
+     * @return the end of the run
+     */
+    private int writeAlignedRun(ByteBuffer buf, int p, int count) throws IOException {
+        int end = p, runStart = p;
+        while (count - end >= 188 && buf.get(end) == 0x47) {
+            byte b1 = buf.get(end + 1);
+            int pid = tsPid(b1, buf.get(end + 2));
+            if ((b1 & 0x80) != 0) {
+                droppedUsbFps++;
+            } else if (psiEngine.wants(pid)) {
+                psiEngine.onPacket(buf, end);
+            }
+            if (pid == NULL_PID) {
+                batchNullPackets++;
+                if (dropNullPackets) {
+                    if (end > runStart) out.write(buf, runStart, end - runStart);
+                    runStart = end + 188;
+                }
+            }
+            end += 188;
+        }
+        batchPackets += (end - p) / 188;
+        if (end > runStart) out.write(buf, runStart, end - runStart);
+        return end;
+    }
+
+    private boolean isSync(byte b) {
+        return (b & 0xFF) == 0x47 || (pktSize == 204 && (b & 0xFF) == 0xB8);
+    }
+
+    private int findNextPacket(ByteBuffer buf, int pos, int count) {
+        int start = pos, lost;
+
+        pos = scanForSync(buf, pos, count);
 
         lost = pos - start;
         if (lost != 0) {
 		    /* This garbage is part of a valid packet? */
             int backtrack = pos - pktSize;
-            if (backtrack >= 0 && ((buf[backtrack] & 0xFF) == 0x47 ||
-                    (pktSize == 204 && (buf[backtrack] & 0xFF) == 0xB8))) {
+            if (backtrack >= 0 && isSync(buf.get(backtrack))) {
                 return backtrack;
             }
         }
@@ -150,37 +374,99 @@ public class DvbDemux implements ByteSink,Closeable {
         return pos;
     }
 
-    private void swfilterPacket(byte[] buf, int offset) throws IOException {
-        int pid = tsPid(buf, offset);
+    /**
+     * @return position of the first sync byte at or after pos, or count if there is none
+     */
+    private int scanForSync(ByteBuffer buf, int pos, int count) {
+        if (pos < count && isSync(buf.get(pos))) return pos;
+
+        while (pos + 8 <= count) {
+            long word = buf.getLong(pos);
+            if (hasByte(word, 0x47L * ONES) || (pktSize == 204 && hasByte(word, 0xB8L * ONES))) break;
+            pos += 8;
+        }
 
-        if ((buf[offset+1] & 0x80) != 0) {
+        while (pos < count && !isSync(buf.get(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @return whether any of the 8 bytes in word equals the corresponding byte in pattern
+     */
+    private static boolean hasByte(long word, long pattern) {
+        long x = word ^ pattern;
+        return ((x - ONES) & ~x & HIGHS) != 0;
+    }
+
+    private void swfilterPacket(ByteBuffer buf, int offset) throws IOException {
+        byte b1 = buf.get(offset+1);
+        int pid = tsPid(b1, buf.get(offset+2));
+        if (!accountPacket(pid, b1, buf.get(offset+3))) return;
+        if ((b1 & 0x80) == 0 && psiEngine.wants(pid)) psiEngine.onPacket(buf, offset);
+        if (pid == NULL_PID && dropNullPackets) return;
+        if (passFullTsStream || (filter.isFiltered(pid) && !remuxer.replaces(pid))) out.write(buf, offset, 188);
+
+        Routing routing = this.routing;
+        if (routing != null) {
+            int mask = routing.pidMasks[pid] | routing.allPidsMask;
+            while (mask != 0) {
+                routing.subscriptions[Integer.numberOfTrailingZeros(mask)].write(buf, offset);
+                mask &= mask - 1;
+            }
+        }
+    }
+
+    private void endOfBatch() throws IOException {
+        // Published once per batch so the counters cost no memory barriers per packet
+        packetCount += batchPackets;
+        nullPacketCount += batchNullPackets;
+        batchPackets = batchNullPackets = 0;
+
+        out.endOfBatch();
+        Routing routing = this.routing;
+        if (routing != null) {
+            for (DemuxSubscription subscription : routing.subscriptions) subscription.endOfBatch();
+        }
+    }
+
+    /**
+     * Does the accounting for a packet given its header bytes
+     * @return false if the packet should not be sent to any output
+     */
+    private boolean accountPacket(int pid, byte b1, byte b3) {
+        batchPackets++;
+        if (pid == NULL_PID) batchNullPackets++;
+
+        if ((b1 & 0x80) != 0) {
             droppedUsbFps++; // count this as dropped frame
 		    /* data in this packet cant be trusted - drop it unless
 		     * constant DVB_DEMUX_FEED_ERR_PKTS is set */
-            if (!DVB_DEMUX_FEED_ERR_PKTS) return;
+            if (!DVB_DEMUX_FEED_ERR_PKTS) return false;
         } else {
             if (CHECK_PACKET_INTEGRITY) {
-                if (!checkSequenceIntegrity(pid, buf, offset)) droppedUsbFps++;
+                boolean primed = isPrimed(pid);
+                if (!checkSequenceIntegrity(pid, b3) && primed) droppedUsbFps++;
             }
         }
-
-        if (passFullTsStream || filter.isFiltered(pid)) out.write(buf, offset, 188);
+        return true;
     }
 
-    private boolean checkSequenceIntegrity(int pid, byte[] buf, int offset) {
-        if (pid == 0x1FFF) return true; // This PID is garbage that should be ignored always
+    private boolean checkSequenceIntegrity(int pid, byte b3) {
+        if (pid == NULL_PID) return true; // This PID is garbage that should be ignored always
 
         int pidLoc = pid >> 1;
 
         if ((pid & 1) == 0) {
             // even pids are stored on left
-            if ((buf[offset + 3] & 0x10) != 0) {
+            if ((b3 & 0x10) != 0) {
                 int val = ((cntStorage[pidLoc] & 0xF0) + 0x10) & 0xF0;
                 cntStorage[pidLoc] = (byte) ((cntStorage[pidLoc] & 0x0F) | val);
             }
 
-            if ((buf[offset + 3] & 0x0F) != ((cntStorage[pidLoc] & 0xF0) >> 4)) {
-                int val = (buf[offset + 3] & 0x0F) << 4;
+            if ((b3 & 0x0F) != ((cntStorage[pidLoc] & 0xF0) >> 4)) {
+                int val = (b3 & 0x0F) << 4;
                 cntStorage[pidLoc] = (byte) ((cntStorage[pidLoc] & 0x0F) | val);
                 return false;
             } else {
@@ -188,13 +474,13 @@ public class DvbDemux implements ByteSink,Closeable {
             }
         } else {
             // odd pids are stored on right
-            if ((buf[offset + 3] & 0x10) != 0) {
+            if ((b3 & 0x10) != 0) {
                 int val = ((cntStorage[pidLoc] & 0x0F) + 0x01) & 0x0F;
                 cntStorage[pidLoc] = (byte) ((cntStorage[pidLoc] & 0xF0) | val);
             }
 
-            if ((buf[offset + 3] & 0x0F) != (cntStorage[pidLoc] & 0x0F)) {
-                int val = buf[offset + 3] & 0x0F;
+            if ((b3 & 0x0F) != (cntStorage[pidLoc] & 0x0F)) {
+                int val = b3 & 0x0F;
                 cntStorage[pidLoc] = (byte) ((cntStorage[pidLoc] & 0xF0) | val);
                 return false;
             } else {
@@ -203,23 +489,174 @@ public class DvbDemux implements ByteSink,Closeable {
         }
     }
 
-    private static int tsPid(byte[] buf, int offset) {
-        return ((buf[offset+1] & 0x1F) << 8) + (buf[offset+2] & 0xFF);
+    /**
+     * @return whether the continuity counter of the pid was up to date, marking it as up to date from now on
+     */
+    private boolean isPrimed(int pid) {
+        long bit = 1L << (pid & 63);
+        long word = cntPrimed[pid >> 6];
+        if ((word & bit) != 0) return true;
+        cntPrimed[pid >> 6] = word | bit;
+        return false;
+    }
+
+    private static int tsPid(byte b1, byte b2) {
+        return ((b1 & 0x1F) << 8) + (b2 & 0xFF);
     }
 
+    /**
+     * Starts over after tuning. Safe to call from any thread, the state of the thread feeding
+     * the demux is reset by that thread before the next chunk of input.
+     */
     void reset() {
-        droppedUsbFps = 0;
+        psiEngine.reset();
+        remuxer.clear();
         lastUpdated = System.currentTimeMillis();
+        resetPending = true;
 
         if (!passFullTsStream) setPidFilter(0); // by default we let through only pid 0
     }
 
+    private void resetStream() {
+        resetPending = false;
+        droppedUsbFps = 0;
+        packetCount = nullPacketCount = 0;
+        batchPackets = batchNullPackets = 0;
+        syncCount = 0;
+        tsBufP = 0;
+        // The counters belong to the previous mux
+        Arrays.fill(cntPrimed, 0);
+        cntStale = false;
+        fullTsBatches = 0;
+    }
+
+    /**
+     * Must be called before the stream is started
+     */
+    void enableSpill(File dir, long maxBytes) throws IOException {
+        ring.enableSpill(dir, maxBytes);
+    }
+
+    RingBuffer getOutputBuffer() {
+        return ring;
+    }
+
+    DemuxSubscription subscribe(int ringCapacity) throws DvbException {
+        synchronized (subscriptions) {
+            if (subscriptions.size() == MAX_SUBSCRIPTIONS) throw new DvbException(BAD_API_USAGE, "Too many demux subscriptions");
+            DemuxSubscription subscription = new DemuxSubscription(this, ringCapacity);
+            subscriptions.add(subscription);
+            updateRouting();
+            return subscription;
+        }
+    }
+
+    void unsubscribe(DemuxSubscription subscription) {
+        synchronized (subscriptions) {
+            if (subscriptions.remove(subscription)) updateRouting();
+        }
+    }
+
+    void updateRouting() {
+        synchronized (subscriptions) {
+            if (subscriptions.isEmpty()) {
+                routing = null;
+                subscriptionPids = new int[0];
+            } else {
+                DemuxSubscription[] active = subscriptions.toArray(new DemuxSubscription[0]);
+                int[] pidMasks = new int[0x1fff + 1];
+                int allPidsMask = 0;
+                int pidCount = 0;
+                for (int i = 0; i < active.length; i++) {
+                    if (active[i].isAllPids()) {
+                        allPidsMask |= 1 << i;
+                    } else {
+                        for (int pid : active[i].getPids()) {
+                            if (pidMasks[pid & 0x1fff] == 0) pidCount++;
+                            pidMasks[pid & 0x1fff] |= 1 << i;
+                        }
+                    }
+                }
+                routing = new Routing(active, pidMasks, allPidsMask);
+
+                if (allPidsMask != 0) {
+                    subscriptionPids = null;
+                } else {
+                    subscriptionPids = new int[pidCount];
+                    int i = 0;
+                    for (int pid = 0; pid < pidMasks.length; pid++) {
+                        if (pidMasks[pid] != 0) subscriptionPids[i++] = pid;
+                    }
+                }
+            }
+        }
+
+        SubscriptionListener listener = subscriptionListener;
+        if (listener != null) listener.onSubscriptionPidsChanged();
+    }
+
+    /**
+     * @return the pids the subscriptions want, or null if one of them wants all pids
+     */
+    int[] getSubscriptionPids() {
+        synchronized (subscriptions) {
+            return subscriptionPids == null ? null : subscriptionPids.clone();
+        }
+    }
+
+    void setSubscriptionListener(SubscriptionListener subscriptionListener) {
+        this.subscriptionListener = subscriptionListener;
+    }
+
+    /**
+     * @return number of output batches dropped because the consumer did not keep up
+     */
+    long getOutputOverflows() {
+        return ring.getOverflowCount();
+    }
+
+    /**
+     * Writes out the staged packets, called from the thread feeding the demux when it stops
+     */
+    void flush() throws IOException {
+        out.flush();
+        Routing routing = this.routing;
+        if (routing != null) {
+            for (DemuxSubscription subscription : routing.subscriptions) subscription.flush();
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        pipe.close();
+        ring.close();
+        DemuxSubscription[] active;
+        synchronized (subscriptions) {
+            active = subscriptions.toArray(new DemuxSubscription[0]);
+        }
+        for (DemuxSubscription subscription : active) subscription.close();
     }
 
     InputStream getInputStream() {
-        return pipe.getInputStream();
+        return ring.getInputStream();
+    }
+
+    interface SubscriptionListener {
+        /**
+         * Called from the thread that changed the subscriptions, see {@link #getSubscriptionPids()}
+         */
+        void onSubscriptionPidsChanged();
+    }
+
+    private static class Routing {
+        private final DemuxSubscription[] subscriptions;
+        // bit i is set for the pids subscription i wants
+        private final int[] pidMasks;
+        private final int allPidsMask;
+
+        private Routing(DemuxSubscription[] subscriptions, int[] pidMasks, int allPidsMask) {
+            this.subscriptions = subscriptions;
+            this.pidMasks = pidMasks;
+            this.allPidsMask = allPidsMask;
+        }
     }
 }
@@ -20,24 +20,93 @@
 
 package info.martinmarinov.drivers;
 
+import android.os.ParcelFileDescriptor;
+
 import androidx.annotation.NonNull;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Set;
-
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import info.martinmarinov.drivers.psi.Descriptors;
+import info.martinmarinov.drivers.psi.Pat;
+import info.martinmarinov.drivers.psi.Pmt;
+import info.martinmarinov.drivers.psi.PsiEngine;
+import info.martinmarinov.drivers.psi.SptsRemuxer;
+import info.martinmarinov.drivers.tools.io.CoalescingOutputStream;
+import info.martinmarinov.drivers.tools.io.FdStreamSink;
+import info.martinmarinov.drivers.tools.io.RingBuffer;
+import info.martinmarinov.usbxfer.ByteSink;
 import info.martinmarinov.usbxfer.ByteSource;
 
 import static info.martinmarinov.drivers.DvbException.ErrorCode.BAD_API_USAGE;
+import static info.martinmarinov.drivers.DvbException.ErrorCode.IO_EXCEPTION;
 
 public abstract class DvbDevice implements Closeable {
+    public final static int NO_SERVICE = -1;
+    private final static int NULL_PID = 0x1FFF;
+    private final static long FILTER_UPDATE_TIMEOUT_MS = 1_000;
+
     private final DvbDemux dvbDemux;
 
     private DataPump dataPump;
+    // Filter updates triggered by new tables, programming hardware filters must not hold up the data thread.
+    // Updates requested while one is pending are merged into it.
+    private final ExecutorService filterUpdates = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean filterUpdatePending = new AtomicBoolean();
+    private final AtomicBoolean extraPidsChanged = new AtomicBoolean();
+    // The pids last passed to setPidFilter, used by the incremental updates
+    private final Set<Integer> pids = new TreeSet<>();
+    // The service the pid filter follows and whether the filter is off, guarded by pids
+    private int serviceId = NO_SERVICE;
+    private boolean serviceWithEcm;
+    private boolean serviceWithTeletext;
+    private boolean singleProgramOutput;
+    private boolean pidFilterDisabled;
 
     protected DvbDevice(DvbDemux dvbDemux) {
         this.dvbDemux = dvbDemux;
+        if (dvbDemux != null) {
+            dvbDemux.getPsiEngine().setListener(new PsiEngine.Listener() {
+                @Override
+                public void onPidsChanged() {
+                    extraPidsChanged.set(true);
+                    scheduleFilterUpdate();
+                }
+
+                @Override
+                public void onPmtChanged(Pmt pmt) {
+                    scheduleFilterUpdate();
+                }
+            });
+            dvbDemux.setSubscriptionListener(new DvbDemux.SubscriptionListener() {
+                @Override
+                public void onSubscriptionPidsChanged() {
+                    extraPidsChanged.set(true);
+                    scheduleFilterUpdate();
+                }
+            });
+        }
+    }
+
+    private void scheduleFilterUpdate() {
+        // subscriptions may still be closed after the device
+        if (filterUpdates.isShutdown() || !filterUpdatePending.compareAndSet(false, true)) return;
+        filterUpdates.execute(new Runnable() {
+            @Override
+            public void run() {
+                filterUpdatePending.set(false);
+                if (extraPidsChanged.getAndSet(false)) onExtraPidsChanged();
+                updateServicePids();
+            }
+        });
     }
 
     public abstract void open() throws DvbException;
@@ -61,39 +130,328 @@ public abstract class DvbDevice implements Closeable {
 
     public final void tune(long freqHz, long bandwidthHz, @NonNull DeliverySystem deliverySystem) throws DvbException {
         tuneTo(freqHz, bandwidthHz, deliverySystem);
-        if (dvbDemux != null) dvbDemux.reset();
+        if (dvbDemux == null) return;
+        synchronized (pids) {
+            dvbDemux.reset();
+            // The demux is back to letting only the PAT through. The cached pids and any hardware filter follow,
+            // otherwise the next update would bring back the filter of the previous mux. A followed service is
+            // filtered again once its tables arrive.
+            if (!pidFilterDisabled) applyPidFilter(0);
+        }
     }
 
     public int readDroppedUsbFps() throws DvbException {
         return dvbDemux.getDroppedUsbFps();
     }
 
+    /**
+     * @return number of times data was dropped because the reader of the transport stream did not keep up
+     */
+    public long readStreamOverflows() {
+        return dvbDemux.getOutputOverflows();
+    }
+
+    /**
+     * While the pid filter is disabled, only one in this many chunks of USB data is checked for
+     * continuity errors so the full stream can be passed on with fewer copies. 1 checks everything.
+     */
+    public void setFullStreamAccountingInterval(int interval) {
+        dvbDemux.setFullTsAccountingInterval(interval);
+    }
+
+    /**
+     * Lets the stream returned by {@link #getTransportStream(StreamCallback)} queue up to maxBytes
+     * in a temporary file in dir when the reader stalls, instead of dropping data once the memory buffer is full.
+     * Call before the stream is started.
+     */
+    public void enableSpillToDisk(File dir, long maxBytes) throws DvbException {
+        try {
+            dvbDemux.enableSpill(dir, maxBytes);
+        } catch (IOException e) {
+            throw new DvbException(IO_EXCEPTION, e);
+        }
+    }
+
+    /**
+     * @return the buffer between the device and the reader of the transport stream, for its statistics
+     */
+    public RingBuffer getStreamBuffer() {
+        return dvbDemux.getOutputBuffer();
+    }
+
+    /**
+     * Adds a consumer of the transport stream with its own pids, see {@link DemuxSubscription}.
+     * Each packet is classified once no matter how many subscribers want it.
+     * @param ringCapacity how many bytes can be buffered for the subscriber before dropping data
+     */
+    public DemuxSubscription subscribe(int ringCapacity) throws DvbException {
+        return dvbDemux.subscribe(ringCapacity);
+    }
+
+    /**
+     * @return the PAT, PMTs, SDT and NIT of the current mux, collected while the transport stream is running
+     */
+    public PsiEngine getPsiEngine() {
+        return dvbDemux.getPsiEngine();
+    }
+
+    /**
+     * Collects the event information of the current mux in the background while the transport stream
+     * is running, see {@link PsiEngine#getEitCache()}. Devices with hardware pid filters let the EIT pid through.
+     */
+    public void setEpgCollection(boolean epgCollection) {
+        if (dvbDemux.getPsiEngine().setEitCollection(epgCollection)) onExtraPidsChanged();
+    }
+
+    /**
+     * Called from a background thread when tables appear on new pids or subscriptions change their pids,
+     * or from the caller of {@link #setEpgCollection}. Devices with hardware pid filters should program
+     * {@link #getHardwarePids} again.
+     */
+    protected void onExtraPidsChanged() {
+    }
+
+    /**
+     * @return the pids a hardware filter has to let through for the client pids, the tables and the
+     * subscriptions, or null if it has to let everything through. Past maxPids only the base table
+     * pids are added, the demux then resolves the rest from the full stream.
+     */
+    protected int[] getHardwarePids(int[] clientPids, int maxPids) {
+        int[] subscriptionPids = dvbDemux.getSubscriptionPids();
+        if (subscriptionPids == null) return null;
+        int[] wanted = union(clientPids, subscriptionPids);
+        int[] withTables = union(wanted, dvbDemux.getPsiEngine().getPids());
+        if (withTables.length <= maxPids) return withTables;
+        int[] withBaseTables = union(wanted, PsiEngine.getBasePids());
+        return withBaseTables.length <= maxPids ? withBaseTables : null;
+    }
+
+    /**
+     * Leave stuffing packets (pid 0x1FFF) out of the transport stream. Use {@link #readNullPacketCount()}
+     * to recover the real mux rate.
+     */
+    public void setDropNullPackets(boolean dropNullPackets) {
+        dvbDemux.setDropNullPackets(dropNullPackets);
+    }
+
+    /**
+     * @return number of packets received from the device since the last tune, including stuffing
+     */
+    public long readPacketCount() {
+        return dvbDemux.getPacketCount();
+    }
+
+    /**
+     * @return number of stuffing packets received since the last tune, whether they were dropped or not
+     */
+    public long readNullPacketCount() {
+        return dvbDemux.getNullPacketCount();
+    }
+
+    /**
+     * Sets the pids to let through, stops following a service set with {@link #setService}
+     */
     public void setPidFilter(int... pids) throws DvbException {
+        synchronized (this.pids) {
+            stopFollowingService();
+            applyPidFilter(pids);
+        }
+    }
+
+    /**
+     * Lets through the PAT, the PMT of the service and the pids it lists, and keeps the filter up
+     * to date when a new version of the PMT arrives. The pids are resolved from the tables collected
+     * while the transport stream is running, until they arrive only the PAT is let through.
+     * @param serviceId the program number of the service, or {@link #NO_SERVICE} to stop following it
+     * @param withEcm also let through the ECM pids of the CA descriptors
+     * @param withTeletext also let through teletext streams
+     */
+    public void setService(int serviceId, boolean withEcm, boolean withTeletext) throws DvbException {
+        synchronized (pids) {
+            this.serviceId = serviceId;
+            this.serviceWithEcm = withEcm;
+            this.serviceWithTeletext = withTeletext;
+            if (serviceId != NO_SERVICE) {
+                applyServicePids();
+            } else {
+                dvbDemux.getRemuxer().clear();
+            }
+        }
+    }
+
+    /**
+     * While following a service set with {@link #setService}, replace the PAT and PMT in the output of
+     * {@link #getTransportStream(StreamCallback)} with ones that list only that service and the streams
+     * that pass the filter, repeated every 100 ms. Players then don't probe the rest of the mux.
+     */
+    public void setSingleProgramOutput(boolean singleProgramOutput) throws DvbException {
+        synchronized (pids) {
+            this.singleProgramOutput = singleProgramOutput;
+            if (serviceId != NO_SERVICE) applyServicePids();
+        }
+    }
+
+    /**
+     * Called with the pids to filter, devices with hardware pid filters should program them too
+     */
+    protected void applyPidFilter(int... pids) throws DvbException {
+        synchronized (this.pids) {
+            pidFilterDisabled = false;
+            this.pids.clear();
+            for (int pid : pids) this.pids.add(pid);
+        }
         dvbDemux.setPidFilter(pids);
     }
 
+    private void stopFollowingService() {
+        serviceId = NO_SERVICE;
+        dvbDemux.getRemuxer().clear();
+    }
+
+    private void updateServicePids() {
+        synchronized (pids) {
+            if (serviceId == NO_SERVICE) return;
+            try {
+                applyServicePids();
+            } catch (DvbException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void applyServicePids() throws DvbException {
+        PsiEngine psiEngine = dvbDemux.getPsiEngine();
+        Set<Integer> servicePids = new TreeSet<>();
+        servicePids.add(0); // PAT
+
+        Pat pat = psiEngine.getPat();
+        Integer pmtPid = pat == null ? null : pat.getPmtPids().get(serviceId);
+        Pmt pmt = pmtPid == null ? null : psiEngine.getPmt(serviceId);
+        if (pmtPid != null) servicePids.add(pmtPid);
+        if (pmt != null) {
+            if (pmt.getPcrPid() != NULL_PID) servicePids.add(pmt.getPcrPid());
+            for (Pmt.Stream stream : pmt.getStreams()) {
+                if (serviceWithTeletext || !stream.hasDescriptor(Descriptors.TELETEXT)) servicePids.add(stream.getPid());
+            }
+            if (serviceWithEcm) servicePids.addAll(pmt.getEcmPids());
+        }
+
+        SptsRemuxer remuxer = dvbDemux.getRemuxer();
+        if (singleProgramOutput && pmt != null) {
+            remuxer.setProgram(pat.getTransportStreamId(), pmtPid, pmt, servicePids);
+        } else {
+            remuxer.clear();
+        }
+
+        if (servicePids.equals(pids)) return;
+        int[] res = new int[servicePids.size()];
+        int i = 0;
+        for (int pid : servicePids) res[i++] = pid;
+        applyPidFilter(res);
+    }
+
+    /**
+     * Adds to the pids set with {@link #setPidFilter(int...)}. Hardware filters only rewrite the slots that changed.
+     */
+    public void addPids(int... pids) throws DvbException {
+        int[] updated;
+        synchronized (this.pids) {
+            for (int pid : pids) this.pids.add(pid);
+            updated = currentPids();
+        }
+        setPidFilter(updated);
+    }
+
+    public void removePids(int... pids) throws DvbException {
+        int[] updated;
+        synchronized (this.pids) {
+            for (int pid : pids) this.pids.remove(pid);
+            updated = currentPids();
+        }
+        setPidFilter(updated);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        Set<Integer> all = new TreeSet<>();
+        for (int pid : a) all.add(pid);
+        for (int pid : b) all.add(pid);
+        int[] res = new int[all.size()];
+        int i = 0;
+        for (int pid : all) res[i++] = pid;
+        return res;
+    }
+
+    private int[] currentPids() {
+        int[] res = new int[pids.size()];
+        int i = 0;
+        for (int pid : pids) res[i++] = pid;
+        return res;
+    }
+
     public void disablePidFilter()throws DvbException {
+        synchronized (pids) {
+            stopFollowingService();
+            pidFilterDisabled = true;
+            pids.clear();
+        }
         dvbDemux.disablePidFilter();
     }
 
+    /**
+     * Choose between low latency and fewer writes for the stream returned by {@link #getTransportStream(StreamCallback)}.
+     * Call before the stream is started.
+     */
+    public void setFlushPolicy(CoalescingOutputStream.FlushPolicy flushPolicy) {
+        dvbDemux.setFlushPolicy(flushPolicy);
+    }
+
     @Override
     public void close() throws IOException {
-        while (dataPump != null && dataPump.isAlive()) {
-            dataPump.interrupt();
-            try {
-                dataPump.join();
-            } catch (InterruptedException ignored) {}
+        stopStream();
+        filterUpdates.shutdownNow();
+        try {
+            // let an update that is programming the hardware finish before the device goes away
+            filterUpdates.awaitTermination(FILTER_UPDATE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
         dvbDemux.close();
     }
 
     public InputStream getTransportStream(StreamCallback streamCallback) throws DvbException {
         if (dataPump != null && dataPump.isAlive()) throw new DvbException(BAD_API_USAGE, "Data stream is still running. Please close the input stream first to start a new one");
-        dataPump = new DataPump(streamCallback);
+        dataPump = new DataPump(dvbDemux, streamCallback);
         dataPump.start();
         return dvbDemux.getInputStream();
     }
 
+    /**
+     * Alternative to {@link #getTransportStream(StreamCallback)} that writes the full transport stream
+     * to a file descriptor, such as a client socket. USB devices write to it straight from native code,
+     * skipping the demux and any software pid filtering. A hardware pid filter programmed with
+     * {@link #setPidFilter} still applies, call {@link #disablePidFilter()} to get the whole mux.
+     *
+     * The descriptor is closed when streaming stops. Shut down the socket or call {@link #stopStream()}
+     * to stop streaming.
+     */
+    public void streamTo(ParcelFileDescriptor fd, StreamCallback streamCallback) throws DvbException {
+        if (dataPump != null && dataPump.isAlive()) throw new DvbException(BAD_API_USAGE, "Data stream is still running. Please close the input stream first to start a new one");
+        dataPump = new DataPump(new FdStreamSink(fd), streamCallback);
+        dataPump.start();
+    }
+
+    /**
+     * Stops the data stream, if running, and waits for it to finish
+     */
+    public void stopStream() {
+        while (dataPump != null && dataPump.isAlive()) {
+            dataPump.interrupt();
+            try {
+                dataPump.join();
+            } catch (InterruptedException ignored) {}
+        }
+    }
+
     public interface StreamCallback {
         void onStreamException(IOException exception);
         void onStoppedStreaming();
@@ -104,9 +462,12 @@ public abstract class DvbDevice implements Closeable {
     /** This thread reads from the USB device as quickly as possible and puts it into the circular buffer.
      * This thread also does pid filtering. **/
     private class DataPump extends Thread {
+        private final ByteSink sink;
         private final StreamCallback callback;
+        private volatile ByteSource tsSource;
 
-        private DataPump(StreamCallback callback) {
+        private DataPump(ByteSink sink, StreamCallback callback) {
+            this.sink = sink;
             this.callback = callback;
         }
 
@@ -114,11 +475,14 @@ public abstract class DvbDevice implements Closeable {
         public void interrupt() {
             super.interrupt();
             try {
-                dvbDemux.close();
+                // Wake up the thread in case it is blocked waiting for data
+                ByteSource source = tsSource;
+                if (source != null) source.cancel();
             } catch (IOException e) {
                 e.printStackTrace();
-                // Close the pipes
             }
+            // Sinks are closed by the thread once it stops using them, so a file descriptor number cannot
+            // be reused under us and the demux can write out the packets it has staged
         }
 
         @Override
@@ -126,7 +490,7 @@ public abstract class DvbDevice implements Closeable {
             setName(DataPump.class.getSimpleName());
             setPriority(MAX_PRIORITY);
 
-            ByteSource tsSource = createTsSource();
+            ByteSource tsSource = this.tsSource = createTsSource();
 
             try {
                 tsSource.open();
@@ -134,9 +498,9 @@ public abstract class DvbDevice implements Closeable {
                 dvbDemux.reset();
                 while (!isInterrupted()) {
                     try {
-                        tsSource.readNext(dvbDemux);
+                        tsSource.readNext(sink);
                     } catch (IOException e) {
-                        // Pipe is closed from other end
+                        // Stream is closed from other end
                         interrupt();
                     }
                 }
@@ -150,6 +514,21 @@ public abstract class DvbDevice implements Closeable {
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+                if (sink == dvbDemux) {
+                    try {
+                        dvbDemux.flush();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                if (sink instanceof Closeable) {
+                    try {
+                        // Closes the ring buffer, the reader gets what is left and then the end of the stream
+                        ((Closeable) sink).close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
                 callback.onStoppedStreaming();
             }
         }
@@ -0,0 +1,95 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import java.nio.charset.Charset;
+
+/**
+ * Helpers for descriptor loops and DVB text (EN 300 468 annex A)
+ */
+public class Descriptors {
+    public static final int CA = 0x09;
+    public static final int NETWORK_NAME = 0x40;
+    public static final int SERVICE = 0x48;
+    public static final int SHORT_EVENT = 0x4D;
+    public static final int TELETEXT = 0x56;
+    public static final int SUBTITLING = 0x59;
+
+    private static final Charset LATIN = Charset.forName("ISO-8859-1");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Descriptors() {}
+
+    /**
+     * @return offset of the first descriptor with the tag in the loop, or -1
+     */
+    public static int find(byte[] buf, int offset, int length, int tag) {
+        int end = offset + length;
+        while (offset + 2 <= end) {
+            int len = buf[offset + 1] & 0xFF;
+            if (offset + 2 + len > end) return -1;
+            if ((buf[offset] & 0xFF) == tag) return offset;
+            offset += 2 + len;
+        }
+        return -1;
+    }
+
+    public static boolean contains(byte[] descriptors, int tag) {
+        return find(descriptors, 0, descriptors.length, tag) >= 0;
+    }
+
+    static String decodeText(byte[] buf, int offset, int length) {
+        if (length <= 0) return "";
+
+        Charset charset = LATIN;
+        int first = buf[offset] & 0xFF;
+        if (first < 0x20) {
+            int selectorLength = first == 0x10 ? 3 : (first == 0x1F ? 2 : 1);
+            if (first == 0x15) {
+                charset = UTF8;
+            } else if (first >= 0x01 && first <= 0x0B) {
+                charset = charsetOrLatin("ISO-8859-" + (first + 4));
+            } else if (first == 0x10 && length >= 3) {
+                charset = charsetOrLatin("ISO-8859-" + (buf[offset + 2] & 0xFF));
+            }
+            offset += Math.min(selectorLength, length);
+            length -= Math.min(selectorLength, length);
+        }
+
+        if (charset == UTF8) return new String(buf, offset, length, charset);
+
+        // Drop the single byte emphasis and line break control codes
+        byte[] text = new byte[length];
+        int size = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int b = buf[i] & 0xFF;
+            if (b < 0x80 || b > 0x9F) text[size++] = buf[i];
+        }
+        return new String(text, 0, size, charset);
+    }
+
+    private static Charset charsetOrLatin(String name) {
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            return LATIN;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import info.martinmarinov.drivers.tools.Crc32Mpeg2;
+
+/**
+ * Keeps the present/following and schedule sections of the event information table of the current
+ * mux, as received, keyed by service, table id and section number. A section that repeats with a
+ * version already cached is dropped after looking at its header, without a CRC check or a copy.
+ *
+ * Memory is bounded, when full the sections that were received first are dropped.
+ */
+public class EitCache {
+    public static final int PID = 0x12;
+    // Present/following and schedule of the actual transport stream, other transport streams are not kept
+    private static final int TABLE_ID_PRESENT_FOLLOWING = 0x4E;
+    private static final int TABLE_ID_SCHEDULE_FIRST = 0x50;
+    private static final int TABLE_ID_SCHEDULE_LAST = 0x5F;
+    // Header, transport stream id, original network id, segment last section number and last table id
+    private static final int EIT_HEADER_SIZE = Sections.HEADER_SIZE + 6;
+
+    private final int maxBytes;
+    // In the order the sections arrived, for eviction
+    private final LinkedHashMap<Integer, byte[]> sections = new LinkedHashMap<>();
+    private int size;
+    private long unchangedSections;
+    private long evictedSections;
+
+    /**
+     * @param maxBytes how many bytes of sections to keep at most
+     */
+    public EitCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    static boolean isCached(int tableId) {
+        return tableId == TABLE_ID_PRESENT_FOLLOWING || (tableId >= TABLE_ID_SCHEDULE_FIRST && tableId <= TABLE_ID_SCHEDULE_LAST);
+    }
+
+    synchronized void onSection(byte[] buf, int offset, int length) {
+        if (length < EIT_HEADER_SIZE + Sections.CRC_SIZE) return;
+        int tableId = Sections.tableId(buf, offset);
+        if (!isCached(tableId) || !Sections.isLongForm(buf, offset) || !Sections.isCurrent(buf, offset)) return;
+
+        int serviceId = Sections.extension(buf, offset);
+        int sectionNumber = Sections.sectionNumber(buf, offset);
+        int key = key(serviceId, tableId, sectionNumber);
+
+        byte[] known = sections.get(key);
+        if (known != null && Sections.version(known, 0) == Sections.version(buf, offset)) {
+            unchangedSections++;
+            return;
+        }
+        if (!Crc32Mpeg2.isValid(buf, offset, length)) return;
+
+        // the version is that of the whole table, sections of other versions are stale, whatever their number
+        int version = Sections.version(buf, offset);
+        for (int s = 0; s <= 0xFF; s++) {
+            int sectionKey = key(serviceId, tableId, s);
+            byte[] section = sections.get(sectionKey);
+            if (section != null && Sections.version(section, 0) != version) remove(sectionKey);
+        }
+
+        if (length > maxBytes) return;
+        while (size + length > maxBytes) {
+            Iterator<byte[]> eldest = sections.values().iterator();
+            size -= eldest.next().length;
+            eldest.remove();
+            evictedSections++;
+        }
+        sections.put(key, Sections.copy(buf, offset, length));
+        size += length;
+    }
+
+    /**
+     * @return the table id and section number of each section of the service, as tableId << 8 | sectionNumber,
+     * mapped to its version
+     */
+    public synchronized Map<Integer, Integer> getVersions(int serviceId) {
+        Map<Integer, Integer> res = new TreeMap<>();
+        for (Map.Entry<Integer, byte[]> entry : sections.entrySet()) {
+            if ((entry.getKey() >>> 16) == serviceId) res.put(entry.getKey() & 0xFFFF, Sections.version(entry.getValue(), 0));
+        }
+        return res;
+    }
+
+    /**
+     * @return a copy of the section, CRC included, or null if it is not cached
+     */
+    public synchronized byte[] getSection(int serviceId, int tableId, int sectionNumber) {
+        byte[] section = sections.get(key(serviceId, tableId, sectionNumber));
+        return section == null ? null : section.clone();
+    }
+
+    /**
+     * @return number of bytes of sections kept
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of sections dropped because the cache already had their version
+     */
+    public synchronized long getUnchangedSections() {
+        return unchangedSections;
+    }
+
+    /**
+     * @return number of sections dropped to stay within the memory limit
+     */
+    public synchronized long getEvictedSections() {
+        return evictedSections;
+    }
+
+    synchronized void clear() {
+        sections.clear();
+        size = 0;
+        unchangedSections = evictedSections = 0;
+    }
+
+    private void remove(int key) {
+        byte[] section = sections.remove(key);
+        if (section != null) size -= section.length;
+    }
+
+    private static int key(int serviceId, int tableId, int sectionNumber) {
+        return (serviceId << 16) | (tableId << 8) | sectionNumber;
+    }
+}
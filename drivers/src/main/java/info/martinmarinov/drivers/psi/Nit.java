@@ -0,0 +1,102 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Network information table of the current network
+ */
+public class Nit {
+    public static final int TABLE_ID = 0x40;
+
+    public static class TransportStream {
+        private final int transportStreamId;
+        private final int originalNetworkId;
+
+        TransportStream(int transportStreamId, int originalNetworkId) {
+            this.transportStreamId = transportStreamId;
+            this.originalNetworkId = originalNetworkId;
+        }
+
+        public int getTransportStreamId() {
+            return transportStreamId;
+        }
+
+        public int getOriginalNetworkId() {
+            return originalNetworkId;
+        }
+    }
+
+    private final int networkId;
+    private final int version;
+    private final String name;
+    private final List<TransportStream> transportStreams;
+
+    Nit(int networkId, int version, String name, List<TransportStream> transportStreams) {
+        this.networkId = networkId;
+        this.version = version;
+        this.name = name;
+        this.transportStreams = Collections.unmodifiableList(transportStreams);
+    }
+
+    static Nit parse(byte[] buf, int offset, int length) {
+        int end = offset + length - Sections.CRC_SIZE;
+        int networkDescriptorsLength = Sections.u12(buf, offset + 8);
+        int p = offset + 10;
+        if (p + networkDescriptorsLength > end) networkDescriptorsLength = Math.max(0, end - p);
+
+        String name = "";
+        int d = Descriptors.find(buf, p, networkDescriptorsLength, Descriptors.NETWORK_NAME);
+        if (d >= 0) name = Descriptors.decodeText(buf, d + 2, buf[d + 1] & 0xFF);
+        p += networkDescriptorsLength + 2; // skip the transport stream loop length, the section length bounds it
+
+        List<TransportStream> transportStreams = new ArrayList<>();
+        while (p + 6 <= end) {
+            int descriptorsLength = Sections.u12(buf, p + 4);
+            transportStreams.add(new TransportStream(Sections.u16(buf, p), Sections.u16(buf, p + 2)));
+            p += 6 + descriptorsLength;
+        }
+        return new Nit(Sections.extension(buf, offset), Sections.version(buf, offset), name, transportStreams);
+    }
+
+    public int getNetworkId() {
+        return networkId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<TransportStream> getTransportStreams() {
+        return transportStreams;
+    }
+
+    @Override
+    public String toString() {
+        return "Nit{networkId=" + networkId + ", version=" + version + ", name='" + name + "'}";
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Program association table, maps program numbers to the pids of their PMTs
+ */
+public class Pat {
+    public static final int TABLE_ID = 0x00;
+
+    private final int transportStreamId;
+    private final int version;
+    private final int networkPid;
+    private final Map<Integer, Integer> pmtPids;
+
+    Pat(int transportStreamId, int version, int networkPid, Map<Integer, Integer> pmtPids) {
+        this.transportStreamId = transportStreamId;
+        this.version = version;
+        this.networkPid = networkPid;
+        this.pmtPids = Collections.unmodifiableMap(pmtPids);
+    }
+
+    static Pat parse(byte[] buf, int offset, int length) {
+        int networkPid = Sections.NIT_PID;
+        Map<Integer, Integer> pmtPids = new TreeMap<>();
+        for (int p = offset + 8; p + 4 <= offset + length - 4; p += 4) {
+            int programNumber = Sections.u16(buf, p);
+            int pid = Sections.u13(buf, p + 2);
+            if (programNumber == 0) {
+                networkPid = pid;
+            } else {
+                pmtPids.put(programNumber, pid);
+            }
+        }
+        return new Pat(Sections.extension(buf, offset), Sections.version(buf, offset), networkPid, pmtPids);
+    }
+
+    public int getTransportStreamId() {
+        return transportStreamId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getNetworkPid() {
+        return networkPid;
+    }
+
+    /**
+     * @return program number to PMT pid
+     */
+    public Map<Integer, Integer> getPmtPids() {
+        return pmtPids;
+    }
+
+    @Override
+    public String toString() {
+        return "Pat{" +
+                "transportStreamId=" + transportStreamId +
+                ", version=" + version +
+                ", pmtPids=" + pmtPids +
+                '}';
+    }
+}
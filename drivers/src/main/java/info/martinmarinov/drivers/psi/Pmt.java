@@ -0,0 +1,162 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Program map table, lists the elementary streams of a program
+ */
+public class Pmt {
+    public static final int TABLE_ID = 0x02;
+
+    public static class Stream {
+        private final int streamType;
+        private final int pid;
+        private final byte[] descriptors;
+
+        Stream(int streamType, int pid, byte[] descriptors) {
+            this.streamType = streamType;
+            this.pid = pid;
+            this.descriptors = descriptors;
+        }
+
+        public int getStreamType() {
+            return streamType;
+        }
+
+        public int getPid() {
+            return pid;
+        }
+
+        byte[] getDescriptors() {
+            return descriptors;
+        }
+
+        public boolean hasDescriptor(int tag) {
+            return Descriptors.contains(descriptors, tag);
+        }
+
+        @Override
+        public String toString() {
+            return "Stream{type=" + streamType + ", pid=" + pid + '}';
+        }
+    }
+
+    private final int programNumber;
+    private final int version;
+    private final int pcrPid;
+    private final byte[] programDescriptors;
+    private final List<Stream> streams;
+    private final byte[] section;
+
+    private Pmt(int programNumber, int version, int pcrPid, byte[] programDescriptors, List<Stream> streams, byte[] section) {
+        this.programNumber = programNumber;
+        this.version = version;
+        this.pcrPid = pcrPid;
+        this.programDescriptors = programDescriptors;
+        this.streams = Collections.unmodifiableList(streams);
+        this.section = section;
+    }
+
+    static Pmt parse(byte[] buf, int offset, int length) {
+        int end = offset + length - Sections.CRC_SIZE;
+        int pcrPid = Sections.u13(buf, offset + 8);
+        int programInfoLength = Sections.u12(buf, offset + 10);
+        int p = offset + 12;
+        byte[] programDescriptors = Sections.copy(buf, p, Math.max(0, Math.min(programInfoLength, end - p)));
+        p += programInfoLength;
+
+        List<Stream> streams = new ArrayList<>();
+        while (p + 5 <= end) {
+            int streamType = buf[p] & 0xFF;
+            int pid = Sections.u13(buf, p + 1);
+            int esInfoLength = Sections.u12(buf, p + 3);
+            p += 5;
+            if (p + esInfoLength > end) break;
+            streams.add(new Stream(streamType, pid, Sections.copy(buf, p, esInfoLength)));
+            p += esInfoLength;
+        }
+
+        return new Pmt(Sections.extension(buf, offset), Sections.version(buf, offset), pcrPid,
+                programDescriptors, streams, Sections.copy(buf, offset, length));
+    }
+
+    public int getProgramNumber() {
+        return programNumber;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getPcrPid() {
+        return pcrPid;
+    }
+
+    byte[] getProgramDescriptors() {
+        return programDescriptors;
+    }
+
+    public List<Stream> getStreams() {
+        return streams;
+    }
+
+    /**
+     * @return pids of the ECM streams listed in CA descriptors of the program and of its streams
+     */
+    public Set<Integer> getEcmPids() {
+        Set<Integer> res = new LinkedHashSet<>();
+        addCaPids(programDescriptors, res);
+        for (Stream stream : streams) addCaPids(stream.descriptors, res);
+        return res;
+    }
+
+    /**
+     * @return a copy of the raw section, CRC included
+     */
+    public byte[] getSection() {
+        return section.clone();
+    }
+
+    private static void addCaPids(byte[] descriptors, Set<Integer> res) {
+        int p = 0;
+        while (p + 2 <= descriptors.length) {
+            int len = descriptors[p + 1] & 0xFF;
+            if (p + 2 + len > descriptors.length) return;
+            if ((descriptors[p] & 0xFF) == Descriptors.CA && len >= 4) res.add(Sections.u13(descriptors, p + 4));
+            p += 2 + len;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Pmt{" +
+                "programNumber=" + programNumber +
+                ", version=" + version +
+                ", pcrPid=" + pcrPid +
+                ", streams=" + streams +
+                '}';
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import info.martinmarinov.drivers.tools.Crc32Mpeg2;
+import info.martinmarinov.drivers.tools.FastIntFilter;
+
+/**
+ * Collects the PAT, the PMTs it points to, the SDT and the NIT from the packets the demux sees,
+ * and optionally the EIT.
+ * A section is only checked against its CRC and parsed when its version changes.
+ *
+ * Packets are fed from the thread feeding the demux, the tables can be read from any thread.
+ */
+public class PsiEngine implements SectionAssembler.SectionListener {
+    public interface Listener {
+        /**
+         * Called from the data thread when the set returned by {@link #getPids()} changes
+         */
+        void onPidsChanged();
+
+        /**
+         * Called from the data thread when a new version of the PMT of a program in the PAT arrives
+         */
+        void onPmtChanged(Pmt pmt);
+    }
+
+    private static final int[] BASE_PIDS = {Sections.PAT_PID, Sections.NIT_PID, Sections.SDT_PID};
+    private static final int EIT_CACHE_BYTES = 2 * 1024 * 1024;
+
+    // Data thread only
+    private final SectionAssembler[] assemblers = new SectionAssembler[0x1FFF + 1];
+    private final List<SectionAssembler> activeAssemblers = new ArrayList<>();
+    private final Deque<SectionAssembler> pool = new ArrayDeque<>();
+    private final byte[] scratch = new byte[188];
+
+    private final FastIntFilter wanted = new FastIntFilter(0x1FFF);
+    private final EitCache eitCache = new EitCache(EIT_CACHE_BYTES);
+    private volatile boolean resetPending;
+    private volatile Listener listener;
+
+    // Guarded by this
+    private final Map<Integer, Integer> versions = new HashMap<>();
+    private final TreeMap<Integer, Pat> patSections = new TreeMap<>();
+    private final Map<Integer, Pmt> pmts = new TreeMap<>();
+    // Program number to PMT pid, as of the last PAT
+    private Map<Integer, Integer> pmtPids = new HashMap<>();
+    private final TreeMap<Integer, Sdt> sdtSections = new TreeMap<>();
+    private final TreeMap<Integer, Nit> nitSections = new TreeMap<>();
+    private int[] pids = BASE_PIDS;
+    private long crcErrors;
+    private boolean eitCollection;
+
+    public PsiEngine() {
+        wanted.setFilter(BASE_PIDS);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Forgets all tables, for example after tuning to another mux
+     */
+    public synchronized void reset() {
+        versions.clear();
+        patSections.clear();
+        pmts.clear();
+        pmtPids = new HashMap<>();
+        sdtSections.clear();
+        nitSections.clear();
+        crcErrors = 0;
+        eitCache.clear();
+        updatePids();
+        // the assemblers belong to the data thread, it drops them with the next packet
+        resetPending = true;
+    }
+
+    /**
+     * @return whether packets of this pid should be passed to {@link #onPacket}
+     */
+    public boolean wants(int pid) {
+        return wanted.isFiltered(pid);
+    }
+
+    /**
+     * @return the pids that carry the tables, for hardware filters
+     */
+    public synchronized int[] getPids() {
+        return pids.clone();
+    }
+
+    public static int[] getBasePids() {
+        return BASE_PIDS.clone();
+    }
+
+    public void onPacket(byte[] packet, int offset) {
+        if (resetPending) recycleAssemblers();
+
+        int pid = ((packet[offset + 1] & 0x1F) << 8) | (packet[offset + 2] & 0xFF);
+        SectionAssembler assembler = assemblers[pid];
+        if (assembler == null) {
+            assembler = pool.isEmpty() ? new SectionAssembler(this) : pool.pop();
+            assembler.reset(pid);
+            assemblers[pid] = assembler;
+            activeAssemblers.add(assembler);
+        }
+        assembler.feed(packet, offset);
+    }
+
+    public void onPacket(ByteBuffer packet, int offset) {
+        packet.position(offset);
+        packet.get(scratch, 0, 188);
+        onPacket(scratch, 0);
+    }
+
+    /**
+     * Starts or stops collecting the EIT into {@link #getEitCache()}, which adds its pid to {@link #getPids()}
+     * @return whether the pids changed
+     */
+    public synchronized boolean setEitCollection(boolean eitCollection) {
+        if (this.eitCollection == eitCollection) return false;
+        this.eitCollection = eitCollection;
+        if (!eitCollection) eitCache.clear();
+        return updatePids();
+    }
+
+    public EitCache getEitCache() {
+        return eitCache;
+    }
+
+    @Override
+    public void onSection(int pid, byte[] buf, int offset, int length) {
+        if (pid == EitCache.PID) {
+            eitCache.onSection(buf, offset, length);
+            return;
+        }
+        if (length < Sections.HEADER_SIZE + Sections.CRC_SIZE) return;
+        if (!Sections.isLongForm(buf, offset) || !Sections.isCurrent(buf, offset)) return;
+
+        int tableId = Sections.tableId(buf, offset);
+        if (!isWanted(pid, tableId)) return;
+
+        int extension = Sections.extension(buf, offset);
+        int sectionNumber = Sections.sectionNumber(buf, offset);
+        int version = Sections.version(buf, offset);
+        int key = (tableId << 24) | (extension << 8) | sectionNumber;
+
+        boolean pidsChanged = false;
+        Pmt changedPmt = null;
+        synchronized (this) {
+            Integer known = versions.get(key);
+            if (known != null && known == version) return;
+            // only sections that would change a table are worth checking, a corrupted repeat is dropped above anyway
+            if (!Crc32Mpeg2.isValid(buf, offset, length)) {
+                crcErrors++;
+                return;
+            }
+            versions.put(key, version);
+
+            if (tableId == Pmt.TABLE_ID) {
+                changedPmt = parsePmt(pid, buf, offset, length);
+                // try again once the PAT lists it
+                if (changedPmt == null) versions.remove(key);
+            } else {
+                pidsChanged = parse(tableId, buf, offset, length);
+            }
+        }
+
+        Listener listener = this.listener;
+        if (listener == null) return;
+        if (pidsChanged) listener.onPidsChanged();
+        if (changedPmt != null) listener.onPmtChanged(changedPmt);
+    }
+
+    /**
+     * @return number of new sections dropped because of a bad CRC_32
+     */
+    public synchronized long getCrcErrors() {
+        return crcErrors;
+    }
+
+    public synchronized Pat getPat() {
+        if (patSections.isEmpty()) return null;
+        Pat first = patSections.firstEntry().getValue();
+        if (patSections.size() == 1) return first;
+
+        Map<Integer, Integer> pmtPids = new TreeMap<>();
+        for (Pat pat : patSections.values()) pmtPids.putAll(pat.getPmtPids());
+        return new Pat(first.getTransportStreamId(), first.getVersion(), first.getNetworkPid(), pmtPids);
+    }
+
+    public synchronized Pmt getPmt(int programNumber) {
+        return pmts.get(programNumber);
+    }
+
+    public synchronized Collection<Pmt> getPmts() {
+        return new ArrayList<>(pmts.values());
+    }
+
+    public synchronized Sdt getSdt() {
+        if (sdtSections.isEmpty()) return null;
+        Sdt first = sdtSections.firstEntry().getValue();
+        if (sdtSections.size() == 1) return first;
+
+        List<Sdt.Service> services = new ArrayList<>();
+        for (Sdt sdt : sdtSections.values()) services.addAll(sdt.getServices());
+        return new Sdt(first.getTransportStreamId(), first.getOriginalNetworkId(), first.getVersion(), services);
+    }
+
+    public synchronized Nit getNit() {
+        if (nitSections.isEmpty()) return null;
+        Nit first = nitSections.firstEntry().getValue();
+        if (nitSections.size() == 1) return first;
+
+        List<Nit.TransportStream> transportStreams = new ArrayList<>();
+        for (Nit nit : nitSections.values()) transportStreams.addAll(nit.getTransportStreams());
+        return new Nit(first.getNetworkId(), first.getVersion(), first.getName(), transportStreams);
+    }
+
+    private boolean isWanted(int pid, int tableId) {
+        switch (tableId) {
+            case Pat.TABLE_ID:
+                return pid == Sections.PAT_PID;
+            case Sdt.TABLE_ID:
+                return pid == Sections.SDT_PID;
+            case Nit.TABLE_ID:
+                return true; // on the pid the PAT says, which is only wanted if it is listed
+            case Pmt.TABLE_ID:
+                return pid != Sections.PAT_PID && pid != Sections.SDT_PID;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return whether the pids of the tables changed
+     */
+    private boolean parse(int tableId, byte[] buf, int offset, int length) {
+        int sectionNumber = Sections.sectionNumber(buf, offset);
+        int lastSectionNumber = Sections.lastSectionNumber(buf, offset);
+
+        switch (tableId) {
+            case Pat.TABLE_ID:
+                patSections.put(sectionNumber, Pat.parse(buf, offset, length));
+                patSections.tailMap(lastSectionNumber, false).clear();
+                return updatePids();
+            case Sdt.TABLE_ID:
+                sdtSections.put(sectionNumber, Sdt.parse(buf, offset, length));
+                sdtSections.tailMap(lastSectionNumber, false).clear();
+                return false;
+            case Nit.TABLE_ID:
+                nitSections.put(sectionNumber, Nit.parse(buf, offset, length));
+                nitSections.tailMap(lastSectionNumber, false).clear();
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the PMT if it belongs to a program in the PAT
+     */
+    private Pmt parsePmt(int pid, byte[] buf, int offset, int length) {
+        Pmt pmt = Pmt.parse(buf, offset, length);
+        Pat pat = getPat();
+        Integer pmtPid = pat == null ? null : pat.getPmtPids().get(pmt.getProgramNumber());
+        if (pmtPid == null || pmtPid != pid) return null;
+
+        pmts.put(pmt.getProgramNumber(), pmt);
+        return pmt;
+    }
+
+    private boolean updatePids() {
+        Pat pat = getPat();
+        TreeSet<Integer> updated = new TreeSet<>();
+        for (int pid : BASE_PIDS) updated.add(pid);
+        if (eitCollection) updated.add(EitCache.PID);
+        if (pat != null) {
+            updated.add(pat.getNetworkPid());
+            updated.addAll(pat.getPmtPids().values());
+
+            forgetMovedPmts(pat.getPmtPids());
+        }
+
+        int[] res = new int[updated.size()];
+        int i = 0;
+        for (int pid : updated) res[i++] = pid;
+        if (Arrays.equals(res, pids)) return false;
+
+        pids = res;
+        wanted.setFilter(res);
+        return true;
+    }
+
+    /**
+     * Drops the PMTs, and the versions seen, of programs that left the PAT or moved to another pid,
+     * so they are parsed again if they come back with the same version
+     */
+    private void forgetMovedPmts(Map<Integer, Integer> updated) {
+        for (Map.Entry<Integer, Integer> program : pmtPids.entrySet()) {
+            int programNumber = program.getKey();
+            if (program.getValue().equals(updated.get(programNumber))) continue;
+            pmts.remove(programNumber);
+            Iterator<Integer> keys = versions.keySet().iterator();
+            while (keys.hasNext()) {
+                int key = keys.next();
+                if ((key >>> 24) == Pmt.TABLE_ID && ((key >> 8) & 0xFFFF) == programNumber) keys.remove();
+            }
+        }
+        pmtPids = new HashMap<>(updated);
+    }
+
+    private void recycleAssemblers() {
+        resetPending = false;
+        for (SectionAssembler assembler : activeAssemblers) pool.push(assembler);
+        activeAssemblers.clear();
+        Arrays.fill(assemblers, null);
+    }
+}
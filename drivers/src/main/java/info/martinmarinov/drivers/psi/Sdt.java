@@ -0,0 +1,168 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Service description table of the current transport stream
+ */
+public class Sdt {
+    public static final int TABLE_ID = 0x42;
+
+    public static class Service {
+        private final int serviceId;
+        private final int serviceType;
+        private final int runningStatus;
+        private final boolean scrambled;
+        private final boolean eitSchedule;
+        private final boolean eitPresentFollowing;
+        private final String providerName;
+        private final String name;
+
+        Service(int serviceId, int serviceType, int runningStatus, boolean scrambled, boolean eitSchedule, boolean eitPresentFollowing, String providerName, String name) {
+            this.serviceId = serviceId;
+            this.serviceType = serviceType;
+            this.runningStatus = runningStatus;
+            this.scrambled = scrambled;
+            this.eitSchedule = eitSchedule;
+            this.eitPresentFollowing = eitPresentFollowing;
+            this.providerName = providerName;
+            this.name = name;
+        }
+
+        public int getServiceId() {
+            return serviceId;
+        }
+
+        public int getServiceType() {
+            return serviceType;
+        }
+
+        public int getRunningStatus() {
+            return runningStatus;
+        }
+
+        public boolean isScrambled() {
+            return scrambled;
+        }
+
+        public boolean hasEitSchedule() {
+            return eitSchedule;
+        }
+
+        public boolean hasEitPresentFollowing() {
+            return eitPresentFollowing;
+        }
+
+        public String getProviderName() {
+            return providerName;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return "Service{id=" + serviceId + ", type=" + serviceType + ", name='" + name + "'}";
+        }
+    }
+
+    private final int transportStreamId;
+    private final int originalNetworkId;
+    private final int version;
+    private final List<Service> services;
+
+    Sdt(int transportStreamId, int originalNetworkId, int version, List<Service> services) {
+        this.transportStreamId = transportStreamId;
+        this.originalNetworkId = originalNetworkId;
+        this.version = version;
+        this.services = Collections.unmodifiableList(services);
+    }
+
+    static Sdt parse(byte[] buf, int offset, int length) {
+        int end = offset + length - Sections.CRC_SIZE;
+        List<Service> services = new ArrayList<>();
+        int p = offset + 11;
+        while (p + 5 <= end) {
+            int serviceId = Sections.u16(buf, p);
+            boolean eitSchedule = (buf[p + 2] & 0x02) != 0;
+            boolean eitPresentFollowing = (buf[p + 2] & 0x01) != 0;
+            int runningStatus = (buf[p + 3] >> 5) & 0x07;
+            boolean scrambled = (buf[p + 3] & 0x10) != 0;
+            int descriptorsLength = Sections.u12(buf, p + 3);
+            p += 5;
+            if (p + descriptorsLength > end) break;
+
+            int serviceType = 0;
+            String providerName = "", name = "";
+            int d = Descriptors.find(buf, p, descriptorsLength, Descriptors.SERVICE);
+            if (d >= 0) {
+                int dEnd = d + 2 + (buf[d + 1] & 0xFF);
+                serviceType = buf[d + 2] & 0xFF;
+                int providerLength = buf[d + 3] & 0xFF;
+                if (d + 4 + providerLength < dEnd) {
+                    providerName = Descriptors.decodeText(buf, d + 4, providerLength);
+                    int nameLength = buf[d + 4 + providerLength] & 0xFF;
+                    name = Descriptors.decodeText(buf, d + 5 + providerLength, Math.min(nameLength, dEnd - (d + 5 + providerLength)));
+                }
+            }
+
+            services.add(new Service(serviceId, serviceType, runningStatus, scrambled, eitSchedule, eitPresentFollowing, providerName, name));
+            p += descriptorsLength;
+        }
+        return new Sdt(Sections.extension(buf, offset), Sections.u16(buf, offset + 8), Sections.version(buf, offset), services);
+    }
+
+    public int getTransportStreamId() {
+        return transportStreamId;
+    }
+
+    public int getOriginalNetworkId() {
+        return originalNetworkId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public List<Service> getServices() {
+        return services;
+    }
+
+    public Service getService(int serviceId) {
+        for (Service service : services) {
+            if (service.serviceId == serviceId) return service;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "Sdt{" +
+                "transportStreamId=" + transportStreamId +
+                ", version=" + version +
+                ", services=" + services +
+                '}';
+    }
+}
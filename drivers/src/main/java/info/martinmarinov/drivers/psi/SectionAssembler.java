@@ -0,0 +1,124 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+/**
+ * Reassembles the sections carried on one pid. Handles pointer fields, several sections in one
+ * packet and sections spanning packets. The buffer is reused, listeners must copy what they keep.
+ */
+class SectionAssembler {
+    static final int MAX_SECTION_SIZE = 4096;
+
+    interface SectionListener {
+        void onSection(int pid, byte[] buf, int offset, int length);
+    }
+
+    private final byte[] buf = new byte[MAX_SECTION_SIZE + 188];
+    private final SectionListener listener;
+
+    private int pid = -1;
+    private int size;
+    private int expectedCc = -1;
+    // Whether the data in the buffer starts at a section boundary
+    private boolean collecting;
+
+    SectionAssembler(SectionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Prepares the assembler for reuse on a different pid
+     */
+    void reset(int pid) {
+        this.pid = pid;
+        size = 0;
+        expectedCc = -1;
+        collecting = false;
+    }
+
+    void feed(byte[] packet, int offset) {
+        int b3 = packet[offset + 3] & 0xFF;
+        int adaptationFieldControl = (b3 >> 4) & 3;
+        if ((adaptationFieldControl & 1) == 0) return; // no payload
+
+        int cc = b3 & 0x0F;
+        if (expectedCc >= 0 && cc != expectedCc) {
+            if (cc == ((expectedCc - 1) & 0x0F)) return; // duplicate packet
+            // lost packets, whatever was being collected is incomplete
+            size = 0;
+            collecting = false;
+        }
+        expectedCc = (cc + 1) & 0x0F;
+
+        int p = offset + 4;
+        int end = offset + 188;
+        if (adaptationFieldControl == 3) p += 1 + (packet[offset + 4] & 0xFF);
+        if (p >= end) return;
+
+        boolean payloadUnitStart = (packet[offset + 1] & 0x40) != 0;
+        if (payloadUnitStart) {
+            int pointer = packet[p++] & 0xFF;
+            if (p + pointer > end) {
+                size = 0;
+                collecting = false;
+                return;
+            }
+            // The bytes before the pointer finish the previous section
+            if (collecting) append(packet, p, pointer);
+            p += pointer;
+            size = 0;
+            collecting = true;
+        } else if (!collecting) {
+            return;
+        }
+
+        append(packet, p, end - p);
+    }
+
+    private void append(byte[] data, int offset, int len) {
+        System.arraycopy(data, offset, buf, size, len);
+        size += len;
+
+        int start = 0;
+        while (size - start >= 3) {
+            if ((buf[start] & 0xFF) == 0xFF) {
+                // stuffing, nothing else until the next payload unit start
+                collecting = false;
+                size = 0;
+                return;
+            }
+            int sectionLength = 3 + (((buf[start + 1] & 0x0F) << 8) | (buf[start + 2] & 0xFF));
+            if (sectionLength > MAX_SECTION_SIZE) {
+                collecting = false;
+                size = 0;
+                return;
+            }
+            if (size - start < sectionLength) break;
+
+            listener.onSection(pid, buf, start, sectionLength);
+            start += sectionLength;
+        }
+
+        if (start != 0) {
+            System.arraycopy(buf, start, buf, 0, size - start);
+            size -= start;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import java.util.Arrays;
+
+import info.martinmarinov.drivers.tools.Crc32Mpeg2;
+
+/**
+ * Readers for the fields of the long section header, and writers for sections the driver generates
+ */
+class Sections {
+    static final int PAT_PID = 0x00;
+    static final int NIT_PID = 0x10;
+    static final int SDT_PID = 0x11;
+
+    // table id, section syntax indicator and section length, table id extension, version, section numbers
+    static final int HEADER_SIZE = 8;
+    static final int CRC_SIZE = 4;
+    private static final int PACKET_PAYLOAD = 184;
+
+    private Sections() {}
+
+    static int u16(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+    }
+
+    static int u13(byte[] buf, int offset) {
+        return u16(buf, offset) & 0x1FFF;
+    }
+
+    static int u12(byte[] buf, int offset) {
+        return u16(buf, offset) & 0x0FFF;
+    }
+
+    static int tableId(byte[] buf, int offset) {
+        return buf[offset] & 0xFF;
+    }
+
+    static boolean isLongForm(byte[] buf, int offset) {
+        return (buf[offset + 1] & 0x80) != 0;
+    }
+
+    static int extension(byte[] buf, int offset) {
+        return u16(buf, offset + 3);
+    }
+
+    static int version(byte[] buf, int offset) {
+        return (buf[offset + 5] >> 1) & 0x1F;
+    }
+
+    static boolean isCurrent(byte[] buf, int offset) {
+        return (buf[offset + 5] & 1) != 0;
+    }
+
+    static int sectionNumber(byte[] buf, int offset) {
+        return buf[offset + 6] & 0xFF;
+    }
+
+    static int lastSectionNumber(byte[] buf, int offset) {
+        return buf[offset + 7] & 0xFF;
+    }
+
+    static byte[] copy(byte[] buf, int offset, int length) {
+        byte[] res = new byte[length];
+        System.arraycopy(buf, offset, res, 0, length);
+        return res;
+    }
+
+    /**
+     * @return a current, single section table with the header and the CRC_32 around the body
+     */
+    static byte[] build(int tableId, int extension, int version, byte[] body, int bodyLength) {
+        int sectionLength = HEADER_SIZE - 3 + bodyLength + CRC_SIZE;
+        byte[] res = new byte[3 + sectionLength];
+        res[0] = (byte) tableId;
+        res[1] = (byte) (0xB0 | (sectionLength >> 8));
+        res[2] = (byte) sectionLength;
+        res[3] = (byte) (extension >> 8);
+        res[4] = (byte) extension;
+        res[5] = (byte) (0xC1 | ((version & 0x1F) << 1));
+        res[6] = 0; // section number
+        res[7] = 0; // last section number
+        System.arraycopy(body, 0, res, HEADER_SIZE, bodyLength);
+        int crc = Crc32Mpeg2.compute(res, 0, res.length - CRC_SIZE);
+        for (int i = 0; i < CRC_SIZE; i++) res[res.length - CRC_SIZE + i] = (byte) (crc >> (24 - 8 * i));
+        return res;
+    }
+
+    /**
+     * Splits a section into TS packets, the first one starts with a pointer field of 0 and the last one
+     * is padded with 0xFF. The continuity counters are left at 0.
+     */
+    static byte[] packetize(int pid, byte[] section) {
+        int packets = (1 + section.length + PACKET_PAYLOAD - 1) / PACKET_PAYLOAD;
+        byte[] res = new byte[packets * 188];
+        Arrays.fill(res, (byte) 0xFF);
+
+        int p = 0;
+        for (int i = 0; i < packets; i++) {
+            int offset = i * 188;
+            res[offset] = 0x47;
+            res[offset + 1] = (byte) ((i == 0 ? 0x40 : 0) | (pid >> 8));
+            res[offset + 2] = (byte) pid;
+            res[offset + 3] = 0x10; // payload only
+            int payload = offset + 4;
+            if (i == 0) res[payload++] = 0; // pointer field
+            int len = Math.min(offset + 188 - payload, section.length - p);
+            System.arraycopy(section, p, res, payload, len);
+            p += len;
+        }
+        return res;
+    }
+}
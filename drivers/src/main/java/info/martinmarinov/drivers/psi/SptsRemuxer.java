@@ -0,0 +1,159 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Turns the filtered output of one program into a single program transport stream. The original
+ * PAT and PMT are left out and a PAT listing only the program and a PMT listing only the streams that
+ * pass the filter are inserted at a fixed interval instead, so players don't probe programs that
+ * are not there.
+ *
+ * The program is set from any thread, the rest is called from the thread feeding the demux.
+ */
+public class SptsRemuxer {
+    private static class Tables {
+        private final int transportStreamId;
+        private final int pmtPid;
+        // The section bodies, to tell whether anything changed
+        private final byte[] patBody, pmtBody;
+        private final byte[] pat;
+        private final byte[] pmt;
+
+        private Tables(int transportStreamId, int pmtPid, byte[] patBody, byte[] pmtBody, byte[] pat, byte[] pmt) {
+            this.transportStreamId = transportStreamId;
+            this.pmtPid = pmtPid;
+            this.patBody = patBody;
+            this.pmtBody = pmtBody;
+            this.pat = pat;
+            this.pmt = pmt;
+        }
+    }
+
+    private final long intervalNs;
+
+    private volatile Tables pending;
+    // Guarded by this
+    private int version;
+
+    // Data thread only
+    private Tables tables;
+    private int patCounter, pmtCounter;
+    private long lastWrittenNs;
+    private final byte[] scratch = new byte[188];
+
+    /**
+     * @param intervalMs how often the tables are repeated
+     */
+    public SptsRemuxer(long intervalMs) {
+        this.intervalNs = intervalMs * 1_000_000L;
+    }
+
+    /**
+     * @param pids the pids that pass the filter, streams on other pids are left out of the PMT
+     */
+    public synchronized void setProgram(int transportStreamId, int pmtPid, Pmt pmt, Collection<Integer> pids) {
+        Tables current = pending;
+        int programNumber = pmt.getProgramNumber();
+
+        byte[] patBody = {
+                (byte) (programNumber >> 8), (byte) programNumber,
+                (byte) (0xE0 | (pmtPid >> 8)), (byte) pmtPid
+        };
+
+        ByteArrayOutputStream pmtBody = new ByteArrayOutputStream();
+        pmtBody.write(0xE0 | (pmt.getPcrPid() >> 8));
+        pmtBody.write(pmt.getPcrPid());
+        writeWithLength(pmtBody, pmt.getProgramDescriptors());
+        for (Pmt.Stream stream : pmt.getStreams()) {
+            if (!pids.contains(stream.getPid())) continue;
+            pmtBody.write(stream.getStreamType());
+            pmtBody.write(0xE0 | (stream.getPid() >> 8));
+            pmtBody.write(stream.getPid());
+            writeWithLength(pmtBody, stream.getDescriptors());
+        }
+
+        byte[] pmtBytes = pmtBody.toByteArray();
+        if (current != null && current.transportStreamId == transportStreamId && current.pmtPid == pmtPid
+                && Arrays.equals(current.patBody, patBody) && Arrays.equals(current.pmtBody, pmtBytes)) return;
+
+        version = (version + 1) & 0x1F;
+        byte[] pat = Sections.build(Pat.TABLE_ID, transportStreamId, version, patBody, patBody.length);
+        byte[] pmtSection = Sections.build(Pmt.TABLE_ID, programNumber, version, pmtBytes, pmtBytes.length);
+        pending = new Tables(transportStreamId, pmtPid, patBody, pmtBytes,
+                Sections.packetize(Sections.PAT_PID, pat), Sections.packetize(pmtPid, pmtSection));
+    }
+
+    /**
+     * Stops rewriting, the original tables pass through again
+     */
+    public synchronized void clear() {
+        pending = null;
+    }
+
+    /**
+     * Called before each chunk of input, inserts the tables if they changed or are due
+     */
+    public void startBatch(OutputStream out) throws IOException {
+        Tables pending = this.pending;
+        long now = System.nanoTime();
+        if (pending != tables) {
+            tables = pending;
+            if (pending == null) return;
+        } else if (pending == null || now - lastWrittenNs < intervalNs) {
+            return;
+        }
+
+        patCounter = write(out, pending.pat, patCounter);
+        pmtCounter = write(out, pending.pmt, pmtCounter);
+        lastWrittenNs = now;
+    }
+
+    /**
+     * @return whether packets of the pid are replaced by the generated tables and should be left out
+     */
+    public boolean replaces(int pid) {
+        return tables != null && (pid == Sections.PAT_PID || pid == tables.pmtPid);
+    }
+
+    private static void writeWithLength(ByteArrayOutputStream out, byte[] descriptors) {
+        out.write(0xF0 | (descriptors.length >> 8));
+        out.write(descriptors.length);
+        out.write(descriptors, 0, descriptors.length);
+    }
+
+    /**
+     * @return the next continuity counter
+     */
+    private int write(OutputStream out, byte[] packets, int counter) throws IOException {
+        for (int offset = 0; offset < packets.length; offset += 188) {
+            System.arraycopy(packets, offset, scratch, 0, 188);
+            scratch[3] = (byte) (0x10 | counter);
+            counter = (counter + 1) & 0x0F;
+            out.write(scratch, 0, 188);
+        }
+        return counter;
+    }
+}
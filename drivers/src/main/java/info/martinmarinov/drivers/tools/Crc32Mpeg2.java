@@ -0,0 +1,83 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.tools;
+
+/**
+ * CRC-32/MPEG-2 as used by PSI and SI sections: polynomial 0x04C11DB7, initial value 0xFFFFFFFF,
+ * not reflected and no final xor. Eight bytes are processed per step with the slicing-by-8 tables.
+ *
+ * For a section with its CRC_32 field included the result is 0.
+ */
+public class Crc32Mpeg2 {
+    public final static int INITIAL = 0xFFFFFFFF;
+    private final static int POLYNOMIAL = 0x04C11DB7;
+
+    // TABLE[k * 256 + b] is the CRC of byte b followed by k zero bytes
+    private final static int[] TABLE = new int[8 * 256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b << 24;
+            for (int bit = 0; bit < 8; bit++) crc = (crc << 1) ^ (crc < 0 ? POLYNOMIAL : 0);
+            TABLE[b] = crc;
+        }
+        for (int k = 1; k < 8; k++) {
+            for (int b = 0; b < 256; b++) {
+                int prev = TABLE[(k - 1) * 256 + b];
+                TABLE[k * 256 + b] = (prev << 8) ^ TABLE[prev >>> 24];
+            }
+        }
+    }
+
+    public static int compute(byte[] buf, int offset, int length) {
+        return update(INITIAL, buf, offset, length);
+    }
+
+    /**
+     * Continues a CRC over more data, so a section can be checked while it arrives in packets
+     * @param crc {@link #INITIAL} or the result of a previous call
+     */
+    public static int update(int crc, byte[] buf, int offset, int length) {
+        int p = offset;
+        int end = offset + length;
+
+        for (; p + 8 <= end; p += 8) {
+            crc ^= ((buf[p] & 0xFF) << 24) | ((buf[p + 1] & 0xFF) << 16) | ((buf[p + 2] & 0xFF) << 8) | (buf[p + 3] & 0xFF);
+            crc = TABLE[7 * 256 + (crc >>> 24)] ^
+                    TABLE[6 * 256 + ((crc >>> 16) & 0xFF)] ^
+                    TABLE[5 * 256 + ((crc >>> 8) & 0xFF)] ^
+                    TABLE[4 * 256 + (crc & 0xFF)] ^
+                    TABLE[3 * 256 + (buf[p + 4] & 0xFF)] ^
+                    TABLE[2 * 256 + (buf[p + 5] & 0xFF)] ^
+                    TABLE[256 + (buf[p + 6] & 0xFF)] ^
+                    TABLE[buf[p + 7] & 0xFF];
+        }
+
+        for (; p < end; p++) crc = (crc << 8) ^ TABLE[(crc >>> 24) ^ (buf[p] & 0xFF)];
+        return crc;
+    }
+
+    /**
+     * @param length length of the whole section, including the CRC_32 at its end
+     */
+    public static boolean isValid(byte[] section, int offset, int length) {
+        return compute(section, offset, length) == 0;
+    }
+}
@@ -20,44 +20,52 @@
 
 package info.martinmarinov.drivers.tools;
 
+/**
+ * A set of small ints with a lookup that never takes a lock. Every update publishes a new bitmap,
+ * so a reader sees either the whole old filter or the whole new one.
+ */
 public class FastIntFilter {
-    private final byte[] bitmap;
-    private int[] filter = new int[0];
+    private final int limit;
+    private final Object lock = new Object();
+    // Never modified once published
+    private volatile long[] bitmap;
 
     public FastIntFilter(int size) {
-        int bitmapSize = (size + 7) >> 3;
-        this.bitmap = new byte[bitmapSize];
+        // Same bound as when the bitmap was kept in bytes
+        this.limit = ((size + 7) >> 3) << 3;
+        this.bitmap = new long[(limit + 63) >> 6];
     }
 
     public void setFilter(int ... ids) {
-        synchronized (bitmap) {
-            for (int aFilter : filter) setFilterOff(aFilter);
-            this.filter = ids;
-            for (int aFilter : filter) setFilterOn(aFilter);
+        synchronized (lock) {
+            long[] updated = new long[bitmap.length];
+            for (int id : ids) updated[index(id)] |= 1L << id;
+            bitmap = updated;
         }
     }
 
-    public boolean isFiltered(int id) {
-        int bid = id >> 3;
-        int rem = id - (bid << 3);
-
-        int mask = 1 << rem;
-        return (bitmap[bid] & mask) != 0;
+    public void add(int ... ids) {
+        synchronized (lock) {
+            long[] updated = bitmap.clone();
+            for (int id : ids) updated[index(id)] |= 1L << id;
+            bitmap = updated;
+        }
     }
 
-    private void setFilterOn(int id) {
-        int bid = id >> 3;
-        int rem = id - (bid << 3);
-
-        int mask = 1 << rem;
-        bitmap[bid] |= mask;
+    public void remove(int ... ids) {
+        synchronized (lock) {
+            long[] updated = bitmap.clone();
+            for (int id : ids) updated[index(id)] &= ~(1L << id);
+            bitmap = updated;
+        }
     }
 
-    private void setFilterOff(int id) {
-        int bid = id >> 3;
-        int rem = id - (bid << 3);
+    public boolean isFiltered(int id) {
+        return (bitmap[id >> 6] & (1L << id)) != 0;
+    }
 
-        int mask = 1 << rem;
-        bitmap[bid] &= ~mask;
+    private int index(int id) {
+        if (id < 0 || id >= limit) throw new ArrayIndexOutOfBoundsException(id);
+        return id >> 6;
     }
 }
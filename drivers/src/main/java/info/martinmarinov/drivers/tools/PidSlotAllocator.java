@@ -0,0 +1,99 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.tools;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Keeps track of which pid sits in which slot of a hardware pid filter, so that a new pid set
+ * only needs the slots that actually changed to be written. Pids that stay keep their slots.
+ */
+public class PidSlotAllocator {
+    public final static int FREE = -1;
+
+    private final int[] slots;
+    private boolean invalid = true;
+
+    public PidSlotAllocator(int count) {
+        this.slots = new int[count];
+        for (int i = 0; i < count; i++) slots[i] = FREE;
+    }
+
+    /**
+     * @return indices of the slots whose pid changed and need to be written, or null if the pids
+     * don't fit in the hardware. The state is left untouched in that case.
+     */
+    public int[] update(int... pids) {
+        Set<Integer> toPlace = new LinkedHashSet<>();
+        for (int pid : pids) {
+            if (pid < 0 || pid > 0x1FFF) return null;
+            toPlace.add(pid);
+        }
+        if (toPlace.size() > slots.length) return null;
+
+        int[] next = slots.clone();
+        for (int i = 0; i < next.length; i++) {
+            if (next[i] != FREE && !toPlace.remove(next[i])) next[i] = FREE;
+        }
+        int free = 0;
+        for (int pid : toPlace) {
+            while (next[free] != FREE) free++;
+            next[free] = pid;
+        }
+
+        int changedCount = 0;
+        int[] changed = new int[next.length];
+        for (int i = 0; i < next.length; i++) {
+            if (invalid || next[i] != slots[i]) changed[changedCount++] = i;
+        }
+        System.arraycopy(next, 0, slots, 0, next.length);
+        invalid = false;
+
+        int[] res = new int[changedCount];
+        System.arraycopy(changed, 0, res, 0, changedCount);
+        return res;
+    }
+
+    /**
+     * @return the pid in the slot or {@link #FREE}
+     */
+    public int getPid(int slot) {
+        return slots[slot];
+    }
+
+    /**
+     * @return bit i is set if slot i holds a pid
+     */
+    public long getMask() {
+        long mask = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != FREE) mask |= 1L << i;
+        }
+        return mask;
+    }
+
+    /**
+     * Call when the hardware may have lost its state, the next update reports all slots as changed
+     */
+    public void invalidate() {
+        invalid = true;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.tools.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Collects small writes, such as individual TS packets, into a staging block so the underlying
+ * stream sees a few large writes instead of one write syscall per packet.
+ *
+ * The producer calls {@link #endOfBatch()} after each chunk of input, when the {@link FlushPolicy}
+ * decides whether the staged data should go out. Not thread safe.
+ */
+public class CoalescingOutputStream extends OutputStream {
+    public enum FlushPolicy {
+        /** Flush at the end of every batch, the data is delayed by no more than one chunk of input */
+        LOW_LATENCY,
+        /**
+         * Flush only when the staging block is full or the oldest staged data is older than the maximum delay.
+         * The delay is checked in {@link #endOfBatch()}, so if the input stalls staged data waits for the
+         * next batch, {@link #flush()} or {@link #close()}.
+         */
+        THROUGHPUT
+    }
+
+    private final OutputStream out;
+    private final byte[] staging;
+    private final long maxDelayNs;
+
+    private FlushPolicy flushPolicy = FlushPolicy.LOW_LATENCY;
+    private int size;
+    private long oldestNs;
+    private long writes;
+
+    /**
+     * @param capacity size of the staging block, writes at least that large bypass it
+     * @param maxDelayMs how long data can stay staged with {@link FlushPolicy#THROUGHPUT}
+     */
+    public CoalescingOutputStream(OutputStream out, int capacity, long maxDelayMs) {
+        this.out = out;
+        this.staging = new byte[capacity];
+        this.maxDelayNs = maxDelayMs * 1_000_000L;
+    }
+
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (size == staging.length) flush();
+        if (size == 0) oldestNs = System.nanoTime();
+        staging[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > staging.length - size) {
+            flush();
+            if (len >= staging.length) {
+                // Staging would only add a copy
+                writeOut(b, off, len);
+                return;
+            }
+        }
+        if (size == 0) oldestNs = System.nanoTime();
+        System.arraycopy(b, off, staging, size, len);
+        size += len;
+    }
+
+    /**
+     * Stages data straight from a (possibly direct) buffer. Data at least as large as the staging
+     * block goes out in blocks of its size.
+     */
+    public void write(ByteBuffer buf, int offset, int len) throws IOException {
+        if (len > staging.length - size) flush();
+        buf.position(offset);
+        while (len >= staging.length) {
+            buf.get(staging, 0, staging.length);
+            writeOut(staging, 0, staging.length);
+            len -= staging.length;
+        }
+        if (len == 0) return;
+        if (size == 0) oldestNs = System.nanoTime();
+        buf.get(staging, size, len);
+        size += len;
+    }
+
+    /**
+     * Called by the producer after each chunk of input, flushes if the policy says so
+     */
+    public void endOfBatch() throws IOException {
+        if (size == 0) return;
+        if (flushPolicy == FlushPolicy.LOW_LATENCY || System.nanoTime() - oldestNs >= maxDelayNs) flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (size == 0) return;
+        writeOut(staging, 0, size);
+        size = 0;
+    }
+
+    /**
+     * @return number of writes that reached the underlying stream, roughly the number of syscalls
+     */
+    public long getWriteCount() {
+        return writes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            size = 0;
+            out.close();
+        }
+    }
+
+    private void writeOut(byte[] b, int off, int len) throws IOException {
+        writes++;
+        out.write(b, off, len);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.tools.io;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import info.martinmarinov.usbxfer.FdSink;
+
+/**
+ * Passes the stream through to a file descriptor, e.g. a client socket, without any filtering.
+ * USB sources write to the descriptor from native code, others go through {@link #consume(byte[], int)}.
+ */
+public class FdStreamSink implements FdSink, Closeable {
+    private final ParcelFileDescriptor fd;
+    private final OutputStream out;
+
+    public FdStreamSink(ParcelFileDescriptor fd) {
+        this.fd = fd;
+        this.out = new FileOutputStream(fd.getFileDescriptor());
+    }
+
+    @Override
+    public int getFd() {
+        return fd.getFd();
+    }
+
+    @Override
+    public void consume(byte[] data, int length) throws IOException {
+        out.write(data, 0, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fd.close();
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.tools.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer single consumer ring buffer with stream facades. The data is handed over without
+ * syscalls and the threads only synchronize when one of them has to wait for the other.
+ *
+ * Closing either stream closes the whole buffer. The consumer can still drain what is left,
+ * the producer gets an {@link IOException}.
+ *
+ * With {@link #enableSpill(File, long)} writes that do not fit in memory go to a file instead and
+ * are moved back into memory, in order, as the consumer makes room. The producer does it when it
+ * writes, the consumer when it runs out of data in memory, so nothing is stuck on disk once the
+ * producer stops. Closing the input stream throws away what is left on disk.
+ */
+public class RingBuffer implements Closeable {
+    public enum OverflowPolicy {
+        /** Drop writes that do not fit and count them, the producer never waits for the consumer */
+        DROP,
+        /** Wait for the consumer to make room, like a pipe does */
+        BLOCK
+    }
+
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Object lock = new Object();
+
+    // total number of bytes ever written and read, each is only changed by one side
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong overflowBytes = new AtomicLong();
+
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicLong spillEvents = new AtomicLong();
+    private volatile long lastCatchUpNs;
+    private volatile long maxCatchUpNs;
+
+    private volatile boolean closed;
+    private volatile boolean consumerWaiting;
+    private volatile boolean producerWaiting;
+
+    // Allocated on first write so devices that never stream don't hold the memory
+    private byte[] buf;
+
+    // Whichever side moves data between the spill file and memory holds spillLock
+    private final Object spillLock = new Object();
+    private volatile boolean spillEnabled;
+    // Bytes waiting in the spill file, readable without the lock
+    private final AtomicLong spillPending = new AtomicLong();
+    // Guarded by spillLock, null once released
+    private SpillFile spill;
+    private byte[] spillScratch;
+    private long spillStartNs;
+
+    private final InputStream inputStream = new InputStream() {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int res = RingBuffer.this.read(single, 0, 1, true);
+            return res < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return RingBuffer.this.read(b, off, len, true);
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, head.get() - tail.get());
+        }
+
+        @Override
+        public void close() {
+            RingBuffer.this.close();
+            // nobody is left to read it
+            synchronized (spillLock) {
+                releaseSpill();
+            }
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            RingBuffer.this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            RingBuffer.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            RingBuffer.this.close();
+        }
+    };
+
+    public RingBuffer(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Moves writes that do not fit in memory to a temporary file in dir instead of dropping them
+     * or waiting. Data is only dropped once the file holds maxBytes. Call before the first write.
+     */
+    public void enableSpill(File dir, long maxBytes) throws IOException {
+        if (closed) throw new IOException("Ring buffer is closed");
+        synchronized (spillLock) {
+            if (spillEnabled) throw new IllegalStateException("Spilling already enabled");
+            spillScratch = new byte[64 * 1024];
+            spill = new SpillFile(dir, maxBytes);
+            spillEnabled = true;
+        }
+    }
+
+    /**
+     * Producer side. With {@link OverflowPolicy#DROP}, or if the data is larger than the whole buffer,
+     * data that does not fit is dropped as a whole so the consumer never sees partial writes.
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Ring buffer is closed");
+        if (buf == null) buf = new byte[capacity];
+
+        if (spillEnabled) {
+            synchronized (spillLock) {
+                if (spill == null) throw new IOException("Ring buffer is closed");
+                if (spill.size() > 0) drainSpill();
+                // Once anything is on disk new data has to queue behind it to keep the order
+                if (spill.size() > 0 || free() < len) {
+                    spill(b, off, len);
+                } else {
+                    put(b, off, len);
+                }
+            }
+            return;
+        } else if (free() < len) {
+            if (overflowPolicy == OverflowPolicy.DROP || len > capacity) {
+                overflows.incrementAndGet();
+                overflowBytes.addAndGet(len);
+                return;
+            }
+            awaitSpace(len);
+        }
+
+        put(b, off, len);
+    }
+
+    /**
+     * Consumer side
+     * @param wait whether to block until there is data
+     * @return number of bytes read, 0 if there is no data and not waiting, -1 if closed and drained
+     */
+    public int read(byte[] b, int off, int len, boolean wait) throws IOException {
+        if (len == 0) return 0;
+
+        long t = tail.get();
+        long available = head.get() - t;
+        while (available == 0) {
+            if (spillPending.get() > 0) {
+                // The producer may have stopped writing, don't leave the data on disk until it writes again
+                synchronized (spillLock) {
+                    if (spill != null) drainSpill();
+                }
+            } else if (closed) {
+                synchronized (spillLock) {
+                    releaseSpill();
+                }
+                return -1;
+            } else if (!wait) {
+                return 0;
+            } else {
+                awaitData();
+            }
+            available = head.get() - t;
+        }
+
+        int count = (int) Math.min(len, available);
+        int pos = (int) (t % capacity);
+        int first = Math.min(count, capacity - pos);
+        System.arraycopy(buf, pos, b, off, first);
+        if (first < count) System.arraycopy(buf, 0, b, off + first, count - first);
+        tail.set(t + count);
+
+        if (producerWaiting) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of writes dropped because the consumer was not keeping up
+     */
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+
+    public long getOverflowBytes() {
+        return overflowBytes.get();
+    }
+
+    /**
+     * @return total number of bytes that went through the spill file
+     */
+    public long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    /**
+     * @return number of times the memory filled up and data started going to the spill file
+     */
+    public long getSpillEvents() {
+        return spillEvents.get();
+    }
+
+    /**
+     * @return how long it took the consumer to catch up with the spill file the last time, in ms
+     */
+    public long getLastCatchUpMs() {
+        return lastCatchUpNs / 1_000_000L;
+    }
+
+    public long getMaxCatchUpMs() {
+        return maxCatchUpNs / 1_000_000L;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        // What is still on disk is released once the consumer has read it
+        synchronized (spillLock) {
+            if (spillPending.get() == 0) releaseSpill();
+        }
+    }
+
+    private long free() {
+        return capacity - (head.get() - tail.get());
+    }
+
+    private void put(byte[] b, int off, int len) {
+        long h = head.get();
+        int pos = (int) (h % capacity);
+        int first = Math.min(len, capacity - pos);
+        System.arraycopy(b, off, buf, pos, first);
+        if (first < len) System.arraycopy(b, off + first, buf, 0, len - first);
+        head.set(h + len);
+
+        if (consumerWaiting) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void spill(byte[] b, int off, int len) throws IOException {
+        boolean wasEmpty = spill.size() == 0;
+        if (!spill.write(b, off, len)) {
+            overflows.incrementAndGet();
+            overflowBytes.addAndGet(len);
+            return;
+        }
+        if (wasEmpty) {
+            spillStartNs = System.nanoTime();
+            spillEvents.incrementAndGet();
+        }
+        spilledBytes.addAndGet(len);
+        spillPending.set(spill.size());
+
+        // a write larger than the memory goes to disk even when the consumer is waiting for data
+        if (consumerWaiting) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void drainSpill() throws IOException {
+        long free;
+        while (spill.size() > 0 && (free = free()) > 0) {
+            int read = spill.read(spillScratch, 0, (int) Math.min(free, spillScratch.length));
+            put(spillScratch, 0, read);
+        }
+        spillPending.set(spill.size());
+
+        if (spill.size() == 0) {
+            long catchUpNs = System.nanoTime() - spillStartNs;
+            lastCatchUpNs = catchUpNs;
+            if (catchUpNs > maxCatchUpNs) maxCatchUpNs = catchUpNs;
+        }
+    }
+
+    private void releaseSpill() {
+        if (spill == null) return;
+        try {
+            spill.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spill = null;
+        spillPending.set(0);
+    }
+
+    /**
+     * Waits until there is data in memory or on disk, or the buffer is closed
+     */
+    private void awaitData() throws InterruptedIOException {
+        synchronized (lock) {
+            consumerWaiting = true;
+            try {
+                while (head.get() == tail.get() && spillPending.get() == 0 && !closed) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                consumerWaiting = false;
+            }
+        }
+    }
+
+    private void awaitSpace(int len) throws IOException {
+        synchronized (lock) {
+            producerWaiting = true;
+            try {
+                while (capacity - (head.get() - tail.get()) < len) {
+                    if (closed) throw new IOException("Ring buffer is closed");
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                producerWaiting = false;
+            }
+        }
+    }
+}
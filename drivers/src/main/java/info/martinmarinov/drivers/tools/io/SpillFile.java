@@ -0,0 +1,101 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.tools.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A ring buffer on disk with fixed capacity. The file is created and sized up front so
+ * spilling does not need to grow it. Not thread safe.
+ */
+class SpillFile implements Closeable {
+    private final File file;
+    private final RandomAccessFile raf;
+    private final long capacity;
+
+    private long head, tail;
+
+    SpillFile(File dir, long capacity) throws IOException {
+        this.capacity = capacity;
+        this.file = File.createTempFile("spill", ".ts", dir);
+        file.deleteOnExit();
+        try {
+            this.raf = new RandomAccessFile(file, "rw");
+            raf.setLength(capacity);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            throw e;
+        }
+    }
+
+    long size() {
+        return head - tail;
+    }
+
+    /**
+     * @return false if the data does not fit, nothing is written in that case
+     */
+    boolean write(byte[] b, int off, int len) throws IOException {
+        if (capacity - size() < len) return false;
+
+        long pos = head % capacity;
+        int first = (int) Math.min(len, capacity - pos);
+        raf.seek(pos);
+        raf.write(b, off, first);
+        if (first < len) {
+            raf.seek(0);
+            raf.write(b, off + first, len - first);
+        }
+        head += len;
+        return true;
+    }
+
+    /**
+     * @return the number of bytes read, at most len and at most #size
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        int count = (int) Math.min(len, size());
+
+        long pos = tail % capacity;
+        int first = (int) Math.min(count, capacity - pos);
+        raf.seek(pos);
+        raf.readFully(b, off, first);
+        if (first < count) {
+            raf.seek(0);
+            raf.readFully(b, off + first, count - first);
+        }
+        tail += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            raf.close();
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
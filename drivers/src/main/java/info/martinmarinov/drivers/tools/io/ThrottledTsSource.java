@@ -103,6 +103,11 @@ public class ThrottledTsSource implements ByteSource {
         }
     }
 
+    @Override
+    public void cancel() {
+        // Never blocks for longer than a sleep which is interruptible
+    }
+
     @Override
     public void close() throws IOException {
         in.close();
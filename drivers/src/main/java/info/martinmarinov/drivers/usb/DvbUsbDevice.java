@@ -51,11 +51,16 @@ import info.martinmarinov.drivers.tools.ThrowingRunnable;
 import info.martinmarinov.drivers.tools.UsbPermissionObtainer;
 import info.martinmarinov.usbxfer.AlternateUsbInterface;
 import info.martinmarinov.usbxfer.ByteSource;
+import info.martinmarinov.usbxfer.TsPreFilter;
+import info.martinmarinov.usbxfer.UrbProfile;
 import info.martinmarinov.usbxfer.UsbBulkSource;
 import info.martinmarinov.usbxfer.UsbHiSpeedBulk;
+import info.martinmarinov.usbxfer.UsbTransferStats;
 
 public abstract class DvbUsbDevice extends DvbDevice {
     private final static int RETRIES = 4;
+    // Hardware pid filters have 32 slots, the PMT pids are only added while they fit
+    private final static int MAX_HARDWARE_PIDS = 32;
 
     public interface Creator {
         /**
@@ -83,6 +88,10 @@ public abstract class DvbUsbDevice extends DvbDevice {
     protected UsbDeviceConnection usbDeviceConnection;
     private AlternateUsbInterface usbInterface;
     private DvbCapabilities capabilities;
+    private TsPreFilter tsPreFilter;
+    private final UsbTransferStats usbTransferStats = new UsbTransferStats();
+    // What the client asked for, null while the filter is disabled
+    private volatile int[] clientPids;
 
     protected DvbUsbDevice(UsbDevice usbDevice, Context context, DeviceFilter deviceFilter, DvbDemux dvbDemux) throws DvbException {
         super(dvbDemux);
@@ -92,6 +101,7 @@ public abstract class DvbUsbDevice extends DvbDevice {
         this.resources = context.getResources();
         this.deviceFilter = deviceFilter;
         if (!UsbHiSpeedBulk.IS_PLATFORM_SUPPORTED) throw new DvbException(UNSUPPORTED_PLATFORM, resources.getString(R.string.unsuported_platform));
+        if (isNativePreFilterEnabled()) tsPreFilter = new TsPreFilter();
     }
 
     private static boolean isRtlSdrBlogV4(UsbDevice usbDevice) {
@@ -143,8 +153,15 @@ public abstract class DvbUsbDevice extends DvbDevice {
                 e.printStackTrace();
             }
 
+            // Don't let URB memory kept for restarting the stream outlive the connection
+            UsbHiSpeedBulk.releaseIdleMemory();
             usbDeviceConnection.close();
         }
+        Log.d(TAG, "usb transfers " + usbTransferStats);
+        if (tsPreFilter != null) {
+            Log.d(TAG, "pre-filter " + tsPreFilter);
+            tsPreFilter.close();
+        }
         Log.d(TAG, "closed");
     }
 
@@ -159,15 +176,62 @@ public abstract class DvbUsbDevice extends DvbDevice {
     }
 
     @Override
-    public void setPidFilter(int... pids) throws DvbException {
-        super.setPidFilter(pids);
-        frontend.setPids(pids);
+    protected void applyPidFilter(int... pids) throws DvbException {
+        super.applyPidFilter(pids);
+        clientPids = pids.clone();
+        setHardwarePidFilter();
     }
 
     @Override
     public void disablePidFilter() throws DvbException {
         super.disablePidFilter();
-        frontend.disablePidFilter();
+        synchronized (this) {
+            clientPids = null;
+            if (tsPreFilter != null) tsPreFilter.passAll();
+            frontend.disablePidFilter();
+        }
+    }
+
+    @Override
+    protected void onExtraPidsChanged() {
+        if (frontend == null) return;
+        try {
+            setHardwarePidFilter();
+        } catch (DvbException e) {
+            Log.w(TAG, "Cannot add table or subscription pids to the filter", e);
+        }
+    }
+
+    /**
+     * Filters the client pids along with the pids the PSI engine and the subscriptions need
+     */
+    private synchronized void setHardwarePidFilter() throws DvbException {
+        int[] pids = clientPids;
+        if (pids == null) return;
+
+        if (tsPreFilter != null) {
+            // The pre-filter is a bitmap, it has no slots to run out of and can take every pid wanted
+            int[] preFilterPids = getHardwarePids(pids, Integer.MAX_VALUE);
+            if (preFilterPids == null) {
+                tsPreFilter.passAll();
+            } else {
+                tsPreFilter.setPids(preFilterPids);
+            }
+        }
+
+        int[] hardwarePids = getHardwarePids(pids, MAX_HARDWARE_PIDS);
+        if (hardwarePids == null) {
+            frontend.disablePidFilter();
+        } else {
+            frontend.setPids(hardwarePids);
+        }
+    }
+
+    /**
+     * @return statistics of the USB transfers of all streams since the device was created
+     */
+    public UsbTransferStats getUsbTransferStats() {
+        return usbTransferStats;
     }
 
     @Override
@@ -231,6 +295,9 @@ public abstract class DvbUsbDevice extends DvbDevice {
         });
     }
 
+    /**
+     * @return the maximum number of USB requests, with {@link UrbProfile#AUTO} fewer may be kept in flight
+     */
     protected int getNumRequests() {
         return 40;
     }
@@ -239,9 +306,27 @@ public abstract class DvbUsbDevice extends DvbDevice {
         return 10;
     }
 
+    protected UsbBulkSource.ReapMode getReapMode() {
+        return UsbBulkSource.ReapMode.BLOCKING;
+    }
+
+    protected UrbProfile getUrbProfile() {
+        return UrbProfile.AUTO;
+    }
+
+    /**
+     * Whether to drop packets with unwanted PIDs in native code before they are copied to the demux
+     */
+    protected boolean isNativePreFilterEnabled() {
+        return true;
+    }
+
     @Override
     protected ByteSource createTsSource() {
-        return new UsbBulkSource(usbDeviceConnection, getUsbEndpoint(), usbInterface, getNumRequests(), getNumPacketsPerRequest());
+        UsbBulkSource source = new UsbBulkSource(usbDeviceConnection, getUsbEndpoint(), usbInterface, getNumRequests(), getNumPacketsPerRequest(), getReapMode(), getUrbProfile());
+        source.setPreFilter(tsPreFilter);
+        source.setTransferStats(usbTransferStats);
+        return source;
     }
 
     /** API for drivers to implement **/
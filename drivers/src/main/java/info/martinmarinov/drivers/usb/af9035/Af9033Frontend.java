@@ -63,6 +63,7 @@ import info.martinmarinov.drivers.DvbStatus;
 import info.martinmarinov.drivers.R;
 import info.martinmarinov.drivers.tools.DvbMath;
 import info.martinmarinov.drivers.tools.I2cAdapter;
+import info.martinmarinov.drivers.tools.PidSlotAllocator;
 import info.martinmarinov.drivers.tools.RegMap;
 import info.martinmarinov.drivers.tools.SleepUtils;
 import info.martinmarinov.drivers.usb.DvbFrontend;
@@ -83,6 +84,7 @@ class Af9033Frontend implements DvbFrontend {
     private final Resources resources;
     private final Af9033Config config;
     final RegMap regMap;
+    private final PidSlotAllocator pidSlots = new PidSlotAllocator(PID_FILTER_COUNT);
 
     private boolean ts_mode_parallel, ts_mode_serial;
     private boolean is_af9035;
@@ -220,6 +222,7 @@ class Af9033Frontend implements DvbFrontend {
     @Override
     public synchronized void init(DvbTuner tuner) throws DvbException {
         this.tuner = tuner;
+        pidSlots.invalidate();
 
         /* Main clk control */
         long utmp = DvbMath.divU64(config.clock * 0x80000L, 1_000_000L);
@@ -451,6 +454,8 @@ class Af9033Frontend implements DvbFrontend {
         regMap.write_reg(0x80004b, tmp);
 	    /* Reset FSM */
         regMap.write_reg(0x800000, 0x00);
+        // the filter is programmed again after tuning, write all of its slots
+        pidSlots.invalidate();
 
         this.frequency = frequency;
     }
@@ -598,10 +603,23 @@ class Af9033Frontend implements DvbFrontend {
 
     @Override
     public synchronized void setPids(int... pids) throws DvbException {
+        int[] changed = pidSlots.update(pids);
+        if (changed == null) {
+            // if can't do hardware filtering, fallback to software
+            Log.d(TAG, "Falling back to software PID filtering");
+            pid_filter_ctrl(false);
+            return;
+        }
+
         pid_filter_ctrl(true);
 
-        for (int i = 0; i < pids.length; i++) {
-            pid_filter(i, pids[i], true);
+        for (int index : changed) {
+            int pid = pidSlots.getPid(index);
+            if (pid == PidSlotAllocator.FREE) {
+                pid_filter(index, 0, false);
+            } else {
+                pid_filter(index, pid, true);
+            }
         }
     }
 
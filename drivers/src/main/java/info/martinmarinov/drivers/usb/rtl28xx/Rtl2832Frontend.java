@@ -43,6 +43,7 @@ import info.martinmarinov.drivers.DvbStatus;
 import info.martinmarinov.drivers.R;
 import info.martinmarinov.drivers.tools.Check;
 import info.martinmarinov.drivers.tools.DvbMath;
+import info.martinmarinov.drivers.tools.PidSlotAllocator;
 import info.martinmarinov.drivers.usb.DvbFrontend;
 import info.martinmarinov.drivers.usb.DvbTuner;
 import info.martinmarinov.drivers.usb.rtl28xx.Rtl2832FrontendData.DvbtRegBitName;
@@ -58,6 +59,9 @@ class Rtl2832Frontend implements DvbFrontend {
     private final Rtl28xxTunerType tunerType;
     private final Rtl28xxI2cAdapter i2cAdapter;
     private final Resources resources;
+    // What the two sets of 32 hardware pid filter slots hold
+    private final PidSlotAllocator masterSlots = new PidSlotAllocator(32);
+    private final PidSlotAllocator slaveSlots = new PidSlotAllocator(32);
 
     private DvbTuner tuner;
 
@@ -218,6 +222,8 @@ class Rtl2832Frontend implements DvbFrontend {
     @Override
     public synchronized void init(DvbTuner tuner) throws DvbException {
         this.tuner = tuner;
+        masterSlots.invalidate();
+        slaveSlots.invalidate();
 
         unsetSdrMode();
 
@@ -321,6 +327,10 @@ class Rtl2832Frontend implements DvbFrontend {
 	    /* soft reset */
         wrDemodReg(DVBT_SOFT_RST, 0x1);
         wrDemodReg(DVBT_SOFT_RST, 0x0);
+
+        // the filter is programmed again after tuning, write all of its slots
+        masterSlots.invalidate();
+        slaveSlots.invalidate();
     }
 
     @Override
@@ -388,7 +398,9 @@ class Rtl2832Frontend implements DvbFrontend {
     }
 
     void setPids(boolean slaveTs, int ... pids) throws DvbException {
-        if (!hardwareSupportsPidFilterOf(pids)) {
+        PidSlotAllocator slots = slaveTs ? slaveSlots : masterSlots;
+        int[] changed = slots.update(pids);
+        if (changed == null) {
             // if can't do hardware filtering, fallback to software
             Log.d(TAG, "Falling back to software PID filtering");
             disablePidFilter(slaveTs);
@@ -396,11 +408,9 @@ class Rtl2832Frontend implements DvbFrontend {
         }
 
         enablePidFilter(slaveTs);
+        if (changed.length == 0) return;
 
-        long pidFilter = 0;
-        for (int index = 0; index < pids.length; index++) {
-            pidFilter |= 1 << index;
-        }
+        long pidFilter = slots.getMask();
 
         // write mask
         byte[] buf = new byte[] {
@@ -416,8 +426,10 @@ class Rtl2832Frontend implements DvbFrontend {
             wr(0x62, 0, buf);
         }
 
-        for (int index = 0; index < pids.length; index++) {
-            int pid = pids[index];
+        // only the slots that changed, freed ones are already off in the mask
+        for (int index : changed) {
+            int pid = slots.getPid(index);
+            if (pid == PidSlotAllocator.FREE) continue;
 
             buf[0] = (byte) ((pid >> 8) & 0xFF);
             buf[1] = (byte) (pid & 0xFF);
@@ -445,18 +457,4 @@ class Rtl2832Frontend implements DvbFrontend {
             wrMask(0x61, 0, 0xc0, 0x80);
         }
     }
-
-    private static boolean hardwareSupportsPidFilterOf(int ... pids) {
-        if (pids.length > 32) {
-            return false;
-        }
-
-        // Avoid unnecessary unpacking, ignore Android Studio warning
-        //noinspection ForLoopReplaceableByForEach
-        for (int i = 0; i < pids.length; i++) {
-            if (pids[i] < 0 || pids[i] > 0x1FFF) return false;
-        }
-
-        return true;
-    }
 }
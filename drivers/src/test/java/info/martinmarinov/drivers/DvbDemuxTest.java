@@ -0,0 +1,229 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class DvbDemuxTest {
+    private DvbDemux dvbDemux;
+
+    @Before
+    public void setUp() {
+        dvbDemux = DvbDemux.DvbDmxSwfilter(64 * 1024);
+    }
+
+    @Test
+    public void filtersPids() throws IOException {
+        dvbDemux.setPidFilter(0, 100);
+        byte[] ts = concat(packet(0, 0), packet(100, 0), packet(200, 0), packet(100, 1));
+
+        dvbDemux.consume(ts, ts.length);
+
+        assertArrayEquals(concat(packet(0, 0), packet(100, 0), packet(100, 1)), drain());
+    }
+
+    @Test
+    public void stitchesPacketsAcrossCalls() throws IOException {
+        dvbDemux.disablePidFilter();
+        byte[] ts = concat(packet(1, 0), packet(2, 0), packet(3, 0));
+
+        dvbDemux.consume(ts, 100);
+        ByteBuffer rest = ByteBuffer.allocateDirect(ts.length - 100);
+        rest.put(ts, 100, ts.length - 100).flip();
+        dvbDemux.consume(rest);
+
+        assertArrayEquals(ts, drain());
+    }
+
+    @Test
+    public void skipsGarbageBeforeSync() throws IOException {
+        dvbDemux.setPidFilter(5);
+        byte[] ts = concat(new byte[] {1, 2, 3}, packet(5, 0), packet(5, 1));
+
+        dvbDemux.consume(ts, ts.length);
+
+        assertArrayEquals(concat(packet(5, 0), packet(5, 1)), drain());
+    }
+
+    @Test
+    public void resyncsAfterLosingLock() throws IOException {
+        dvbDemux.disablePidFilter();
+        byte[] locked = concat(packet(1, 0), packet(1, 1), packet(1, 2), packet(1, 3), packet(1, 4), packet(1, 5));
+        byte[] garbage = new byte[100];
+        for (int i = 0; i < garbage.length; i++) garbage[i] = (byte) (0x80 | i);
+        byte[] after = concat(packet(2, 0), packet(2, 1));
+        byte[] ts = concat(locked, garbage, after);
+
+        dvbDemux.consume(ts, ts.length);
+        ByteBuffer direct = ByteBuffer.allocateDirect(ts.length);
+        direct.put(ts).flip();
+        dvbDemux.consume(direct);
+
+        assertArrayEquals(concat(locked, after, locked, after), drain());
+    }
+
+    @Test
+    public void passesFullStreamInRuns() throws IOException {
+        dvbDemux.disablePidFilter();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 16; i++) {
+            byte[] ts = concat(packet(1, 2 * i), packet(2, 2 * i), packet(1, 2 * i + 1), packet(2, 2 * i + 1));
+            ByteBuffer direct = ByteBuffer.allocateDirect(ts.length);
+            direct.put(ts).flip();
+            dvbDemux.consume(direct);
+            dvbDemux.consume(ts, ts.length);
+            expected.write(ts, 0, ts.length);
+            expected.write(ts, 0, ts.length);
+        }
+
+        assertArrayEquals(expected.toByteArray(), drain());
+    }
+
+    @Test
+    public void detectsTimestampedPackets() throws IOException {
+        dvbDemux.setPidFilter(7);
+        ByteArrayOutputStream ts = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 8; i++) {
+            byte[] packet = packet(7, i);
+            ts.write(new byte[] {0, 1, 2, (byte) i}, 0, 4);
+            ts.write(packet, 0, packet.length);
+            expected.write(packet, 0, packet.length);
+        }
+        ts.write(new byte[4], 0, 4); // the last packet goes out once the stride is complete
+
+        dvbDemux.consume(ts.toByteArray(), ts.size());
+
+        assertThat(dvbDemux.getPacketSize(), is(192));
+        assertArrayEquals(expected.toByteArray(), drain());
+    }
+
+    @Test
+    public void detectsPacketsWithParity() throws IOException {
+        dvbDemux.disablePidFilter();
+        ByteArrayOutputStream ts = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 16; i++) {
+            byte[] packet = packet(3, i);
+            expected.write(packet, 0, packet.length);
+            if (i % 8 == 0) packet[0] = (byte) 0xB8;
+            ts.write(packet, 0, packet.length);
+            ts.write(new byte[16], 0, 16);
+        }
+        ByteBuffer direct = ByteBuffer.allocateDirect(ts.size());
+        direct.put(ts.toByteArray()).flip();
+
+        dvbDemux.consume(direct);
+
+        assertThat(dvbDemux.getPacketSize(), is(204));
+        assertArrayEquals(expected.toByteArray(), drain());
+    }
+
+    @Test
+    public void routesPacketsToSubscribers() throws Exception {
+        dvbDemux.setPidFilter(0);
+        DemuxSubscription viewer = dvbDemux.subscribe(64 * 1024);
+        viewer.setPids(100, 101);
+        DemuxSubscription recorder = dvbDemux.subscribe(64 * 1024);
+        recorder.passAll();
+        byte[] ts = concat(packet(0, 0), packet(100, 0), packet(200, 0), packet(101, 0));
+
+        dvbDemux.consume(ts, ts.length);
+        viewer.close();
+        dvbDemux.consume(ts, ts.length);
+
+        assertArrayEquals(concat(packet(0, 0), packet(0, 0)), drain());
+        assertArrayEquals(concat(packet(100, 0), packet(101, 0)), drain(viewer.getInputStream()));
+        assertArrayEquals(concat(ts, ts), drain(recorder.getInputStream()));
+    }
+
+    @Test
+    public void dropsAndCountsNullPackets() throws IOException {
+        dvbDemux.disablePidFilter();
+        dvbDemux.setDropNullPackets(true);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 32; i++) {
+            byte[] ts = concat(packet(1, i), packet(0x1FFF, 0), packet(0x1FFF, 0), packet(2, i));
+            dvbDemux.consume(ts, ts.length);
+            expected.write(packet(1, i), 0, 188);
+            expected.write(packet(2, i), 0, 188);
+        }
+
+        assertArrayEquals(expected.toByteArray(), drain());
+        assertThat(dvbDemux.getPacketCount(), is(128L));
+        assertThat(dvbDemux.getNullPacketCount(), is(64L));
+    }
+
+    @Test
+    public void forgetsContinuityCountersOnReset() throws IOException {
+        dvbDemux.disablePidFilter();
+        byte[] ts = concat(packet(1, 0), packet(1, 1), packet(1, 2));
+        dvbDemux.consume(ts, ts.length);
+        dvbDemux.getDroppedUsbFps();
+
+        dvbDemux.reset();
+        // the new mux starts at another counter
+        ts = concat(packet(1, 9), packet(1, 10));
+        dvbDemux.consume(ts, ts.length);
+
+        assertThat(dvbDemux.getDroppedUsbFps(), is(0));
+        assertThat(dvbDemux.getPacketCount(), is(2L));
+    }
+
+    private byte[] drain() throws IOException {
+        return drain(dvbDemux.getInputStream());
+    }
+
+    private byte[] drain(InputStream in) throws IOException {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        while (in.available() > 0) {
+            int read = in.read(buf);
+            res.write(buf, 0, read);
+        }
+        return res.toByteArray();
+    }
+
+    private static byte[] packet(int pid, int counter) {
+        byte[] packet = new byte[188];
+        packet[0] = 0x47;
+        packet[1] = (byte) (pid >> 8);
+        packet[2] = (byte) pid;
+        packet[3] = (byte) (0x10 | (counter & 0x0F));
+        for (int i = 4; i < packet.length; i++) packet[i] = (byte) (pid + i);
+        return packet;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        for (byte[] p : parts) res.write(p, 0, p.length);
+        return res.toByteArray();
+    }
+}
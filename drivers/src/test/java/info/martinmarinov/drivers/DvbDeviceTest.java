@@ -0,0 +1,285 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Set;
+
+import info.martinmarinov.drivers.tools.Crc32Mpeg2;
+import info.martinmarinov.usbxfer.ByteSource;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DvbDeviceTest {
+    private final static long TIMEOUT_MS = 5_000;
+
+    private DvbDemux dvbDemux;
+    private TestDvbDevice dvbDevice;
+    private final int[] counters = new int[0x1FFF + 1];
+
+    @Before
+    public void setUp() {
+        dvbDemux = DvbDemux.DvbDmxSwfilter(64 * 1024);
+        dvbDevice = new TestDvbDevice(dvbDemux);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dvbDevice.close();
+    }
+
+    @Test
+    public void followsServiceAfterTune() throws Exception {
+        dvbDevice.setService(0x10, false, false);
+        feed(tables());
+        feed(packet(0x101));
+        drain();
+
+        dvbDevice.tune(506_000_000L, 8_000_000L, DeliverySystem.DVBT);
+        feed(tables());
+
+        feedUntilPassed(0x101);
+    }
+
+    @Test
+    public void addsPidsToFilterOfNewMux() throws Exception {
+        dvbDevice.setPidFilter(0x200);
+        dvbDevice.tune(506_000_000L, 8_000_000L, DeliverySystem.DVBT);
+        dvbDevice.addPids(0x201);
+
+        byte[] added = packet(0x201);
+        feed(concat(packet(0x200), added));
+
+        assertArrayEquals(added, drain());
+    }
+
+    @Test
+    public void hardwareFilterLetsSubscribedPidsThrough() throws Exception {
+        dvbDevice.setPidFilter(0x200);
+        DemuxSubscription subscription = dvbDevice.subscribe(64 * 1024);
+        subscription.setPids(0x300);
+
+        byte[] subscribed = packet(0x300);
+        feedUntilHardwarePasses(subscribed);
+
+        assertArrayEquals(new byte[0], drain());
+        byte[] received = new byte[188];
+        assertEquals(188, subscription.getInputStream().read(received));
+        assertArrayEquals(subscribed, received);
+    }
+
+    @Test
+    public void keepsEveryPidWithoutSlotLimit() {
+        int[] clientPids = new int[40];
+        for (int i = 0; i < clientPids.length; i++) clientPids[i] = 0x200 + i;
+
+        assertNull(dvbDevice.getHardwarePids(clientPids, 32));
+        int[] all = dvbDevice.getHardwarePids(clientPids, Integer.MAX_VALUE);
+        for (int pid : clientPids) assertTrue(Arrays.binarySearch(all, pid) >= 0);
+    }
+
+    private byte[] tables() {
+        byte[] pat = section(0x00, 1, new byte[] {0x00, 0x10, (byte) 0xE1, 0x00});
+        byte[] pmt = section(0x02, 0x10, new byte[] {
+                (byte) 0xE1, 0x01, (byte) 0xF0, 0x00, // PCR pid, no program descriptors
+                0x02, (byte) 0xE1, 0x01, (byte) 0xF0, 0x00 // video
+        });
+        return concat(tablePacket(0, pat), tablePacket(0x100, pmt));
+    }
+
+    /**
+     * The filter follows the tables from a background thread, keep feeding until it lets the pid through
+     */
+    private void feedUntilPassed(int pid) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            feed(packet(pid));
+            if (drain().length > 0) return;
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Pid " + pid + " was not let through");
+    }
+
+    /**
+     * Feeds the packet once the hardware filter, updated from a background thread, lets it through
+     */
+    private void feedUntilHardwarePasses(byte[] packet) throws Exception {
+        int pid = ((packet[1] & 0x1F) << 8) | (packet[2] & 0xFF);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            if (dvbDevice.hardwareFilters(pid)) {
+                feed(packet);
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Pid " + pid + " is not in the hardware filter");
+    }
+
+    private void feed(byte[] ts) throws IOException {
+        dvbDemux.consume(ts, ts.length);
+    }
+
+    /**
+     * @return the output, without the table packets
+     */
+    private byte[] drain() throws IOException {
+        InputStream in = dvbDemux.getInputStream();
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        byte[] packet = new byte[188];
+        while (in.available() > 0) {
+            int read = 0;
+            while (read < 188) read += in.read(packet, read, 188 - read);
+            int pid = ((packet[1] & 0x1F) << 8) | (packet[2] & 0xFF);
+            if (pid != 0 && pid != 0x100) res.write(packet, 0, 188);
+        }
+        return res.toByteArray();
+    }
+
+    private byte[] packet(int pid) {
+        byte[] packet = new byte[188];
+        packet[0] = 0x47;
+        packet[1] = (byte) (pid >> 8);
+        packet[2] = (byte) pid;
+        packet[3] = (byte) (0x10 | (counters[pid]++ & 0x0F));
+        return packet;
+    }
+
+    private byte[] tablePacket(int pid, byte[] section) {
+        byte[] packet = packet(pid);
+        packet[1] |= 0x40;
+        for (int i = 4; i < 188; i++) packet[i] = (byte) 0xFF;
+        packet[4] = 0; // pointer field
+        System.arraycopy(section, 0, packet, 5, section.length);
+        return packet;
+    }
+
+    private static byte[] section(int tableId, int extension, byte[] body) {
+        int sectionLength = 5 + body.length + 4;
+        byte[] res = new byte[3 + sectionLength];
+        res[0] = (byte) tableId;
+        res[1] = (byte) (0xB0 | (sectionLength >> 8));
+        res[2] = (byte) sectionLength;
+        res[3] = (byte) (extension >> 8);
+        res[4] = (byte) extension;
+        res[5] = (byte) 0xC1;
+        System.arraycopy(body, 0, res, 8, body.length);
+        int crc = Crc32Mpeg2.compute(res, 0, res.length - 4);
+        for (int i = 0; i < 4; i++) res[res.length - 4 + i] = (byte) (crc >> (24 - 8 * i));
+        return res;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        for (byte[] p : parts) res.write(p, 0, p.length);
+        return res.toByteArray();
+    }
+
+    private static class TestDvbDevice extends DvbDevice {
+        private final static int MAX_HARDWARE_PIDS = 32;
+
+        private int[] clientPids = new int[0];
+        private int[] hardwarePids = new int[0];
+
+        private TestDvbDevice(DvbDemux dvbDemux) {
+            super(dvbDemux);
+        }
+
+        @Override
+        protected synchronized void applyPidFilter(int... pids) throws DvbException {
+            super.applyPidFilter(pids);
+            clientPids = pids.clone();
+            hardwarePids = getHardwarePids(clientPids, MAX_HARDWARE_PIDS);
+        }
+
+        @Override
+        protected synchronized void onExtraPidsChanged() {
+            hardwarePids = getHardwarePids(clientPids, MAX_HARDWARE_PIDS);
+        }
+
+        private synchronized boolean hardwareFilters(int pid) {
+            if (hardwarePids == null) return true;
+            for (int hardwarePid : hardwarePids) {
+                if (hardwarePid == pid) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public DeviceFilter getDeviceFilter() {
+            return null;
+        }
+
+        @Override
+        public DvbCapabilities readCapabilities() {
+            return null;
+        }
+
+        @Override
+        public int readSnr() {
+            return 0;
+        }
+
+        @Override
+        public int readRfStrengthPercentage() {
+            return 0;
+        }
+
+        @Override
+        public int readBitErrorRate() {
+            return 0;
+        }
+
+        @Override
+        public Set<DvbStatus> getStatus() {
+            return null;
+        }
+
+        @Override
+        public String getDebugString() {
+            return "Test device";
+        }
+
+        @Override
+        protected void tuneTo(long freqHz, long bandwidthHz, @NonNull DeliverySystem deliverySystem) {
+        }
+
+        @Override
+        protected ByteSource createTsSource() {
+            return null;
+        }
+    }
+}
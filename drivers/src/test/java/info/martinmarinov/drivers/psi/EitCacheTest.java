@@ -0,0 +1,138 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import org.junit.Test;
+
+import info.martinmarinov.drivers.tools.Crc32Mpeg2;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class EitCacheTest {
+    private final EitCache eitCache = new EitCache(64 * 1024);
+
+    @Test
+    public void keepsSectionsByServiceTableAndNumber() {
+        byte[] presentFollowing = eit(0x4E, 0x10, 3, 0, 1, 100);
+        byte[] schedule = eit(0x50, 0x10, 5, 8, 8, 100);
+        byte[] otherService = eit(0x4E, 0x11, 1, 0, 1, 100);
+        feed(presentFollowing, schedule, otherService);
+
+        assertThat(eitCache.getVersions(0x10).size(), is(2));
+        assertThat(eitCache.getVersions(0x10).get(0x4E00), is(3));
+        assertThat(eitCache.getVersions(0x10).get(0x5008), is(5));
+        assertArrayEquals(schedule, eitCache.getSection(0x10, 0x50, 8));
+        assertThat(eitCache.getSize(), is(3 * presentFollowing.length));
+    }
+
+    @Test
+    public void dropsRepeatsOfKnownVersion() {
+        byte[] section = eit(0x4E, 0x10, 3, 0, 1, 100);
+        feed(section, section, section);
+
+        assertThat(eitCache.getUnchangedSections(), is(2L));
+        assertThat(eitCache.getSize(), is(section.length));
+    }
+
+    @Test
+    public void replacesSectionsOfNewVersion() {
+        feed(eit(0x4E, 0x10, 3, 0, 1, 100), eit(0x4E, 0x10, 3, 1, 1, 100));
+        byte[] updated = eit(0x4E, 0x10, 4, 0, 0, 50);
+        feed(updated);
+
+        assertArrayEquals(updated, eitCache.getSection(0x10, 0x4E, 0));
+        assertNull(eitCache.getSection(0x10, 0x4E, 1)); // beyond the last section of the new version
+        assertThat(eitCache.getSize(), is(updated.length));
+    }
+
+    @Test
+    public void dropsOldVersionSectionsOfTheTable() {
+        feed(eit(0x50, 0x10, 3, 0, 16, 100), eit(0x50, 0x10, 3, 8, 16, 100), eit(0x50, 0x11, 3, 0, 0, 100));
+        byte[] updated = eit(0x50, 0x10, 4, 16, 16, 100);
+        feed(updated);
+
+        // sections 0 and 8 of version 3 are below the new last section number but stale
+        assertThat(eitCache.getVersions(0x10).size(), is(1));
+        assertThat(eitCache.getVersions(0x10).get(0x5010), is(4));
+        assertThat(eitCache.getVersions(0x11).size(), is(1));
+    }
+
+    @Test
+    public void ignoresBadCrcAndOtherTables() {
+        byte[] corrupted = eit(0x4E, 0x10, 3, 0, 1, 100);
+        corrupted[20] ^= 1;
+        feed(corrupted, eit(0x4F, 0x10, 3, 0, 1, 100));
+
+        assertThat(eitCache.getSize(), is(0));
+    }
+
+    @Test
+    public void staysWithinMemoryLimit() {
+        EitCache small = new EitCache(1000);
+        for (int i = 0; i < 10; i++) {
+            byte[] section = eit(0x50, 0x10, 0, i, 9, 200);
+            small.onSection(section, 0, section.length);
+        }
+
+        assertTrue(small.getSize() <= 1000);
+        assertThat(small.getEvictedSections(), is(6L));
+        assertNull(small.getSection(0x10, 0x50, 0));
+        assertThat(small.getVersions(0x10).size(), is(4));
+    }
+
+    @Test
+    public void collectedByPsiEngineWhenEnabled() {
+        PsiEngine psiEngine = new PsiEngine();
+        assertTrue(psiEngine.setEitCollection(true));
+        assertTrue(psiEngine.wants(EitCache.PID));
+
+        byte[] section = eit(0x4E, 0x10, 3, 0, 1, 100);
+        byte[] packet = Sections.packetize(EitCache.PID, section);
+        psiEngine.onPacket(packet, 0);
+
+        assertArrayEquals(section, psiEngine.getEitCache().getSection(0x10, 0x4E, 0));
+    }
+
+    private void feed(byte[]... sections) {
+        for (byte[] section : sections) eitCache.onSection(section, 0, section.length);
+    }
+
+    private static byte[] eit(int tableId, int serviceId, int version, int sectionNumber, int lastSectionNumber, int eventBytes) {
+        byte[] body = new byte[6 + eventBytes];
+        body[0] = 0x00; // transport stream id
+        body[1] = 0x01;
+        body[2] = 0x00; // original network id
+        body[3] = 0x02;
+        body[4] = (byte) lastSectionNumber; // segment last section number
+        body[5] = (byte) tableId; // last table id
+        for (int i = 6; i < body.length; i++) body[i] = (byte) (i + sectionNumber);
+        byte[] section = Sections.build(tableId, serviceId, version, body, body.length);
+        section[6] = (byte) sectionNumber;
+        section[7] = (byte) lastSectionNumber;
+        // the section numbers are covered by the CRC
+        int crc = Crc32Mpeg2.compute(section, 0, section.length - 4);
+        for (int i = 0; i < 4; i++) section[section.length - 4 + i] = (byte) (crc >> (24 - 8 * i));
+        return section;
+    }
+}
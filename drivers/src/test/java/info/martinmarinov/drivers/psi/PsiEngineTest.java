@@ -0,0 +1,242 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import info.martinmarinov.drivers.tools.Crc32Mpeg2;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class PsiEngineTest {
+    private PsiEngine psiEngine;
+    private int pidChanges;
+    private int pmtChanges;
+    private final int[] counters = new int[0x1FFF + 1];
+
+    @Before
+    public void setUp() {
+        psiEngine = new PsiEngine();
+        psiEngine.setListener(new PsiEngine.Listener() {
+            @Override
+            public void onPidsChanged() {
+                pidChanges++;
+            }
+
+            @Override
+            public void onPmtChanged(Pmt pmt) {
+                pmtChanges++;
+            }
+        });
+    }
+
+    @Test
+    public void followsPatToPmt() {
+        feed(0, pat(1, 0, 0x10, 0x100));
+        feed(0x100, pmt(0x10, 0, 0x101, 0x02, 0x101, 0x04, 0x102));
+
+        Pat pat = psiEngine.getPat();
+        assertThat(pat.getTransportStreamId(), is(1));
+        assertThat(pat.getPmtPids().get(0x10), is(0x100));
+        assertArrayEquals(new int[] {0, 0x10, 0x11, 0x100}, psiEngine.getPids());
+        assertThat(pidChanges, is(1));
+
+        Pmt pmt = psiEngine.getPmt(0x10);
+        assertThat(pmt.getPcrPid(), is(0x101));
+        List<Pmt.Stream> streams = pmt.getStreams();
+        assertThat(streams.size(), is(2));
+        assertThat(streams.get(1).getStreamType(), is(0x04));
+        assertThat(streams.get(1).getPid(), is(0x102));
+        assertThat(pmtChanges, is(1));
+    }
+
+    @Test
+    public void ignoresRepeatedSectionsAndPicksUpNewVersions() {
+        byte[] pat = pat(1, 0, 0x10, 0x100);
+        feed(0, pat);
+        feed(0, pat);
+        assertThat(pidChanges, is(1));
+
+        feed(0, pat(1, 1, 0x10, 0x200));
+
+        assertThat(psiEngine.getPat().getVersion(), is(1));
+        assertArrayEquals(new int[] {0, 0x10, 0x11, 0x200}, psiEngine.getPids());
+        assertThat(pidChanges, is(2));
+    }
+
+    @Test
+    public void reassemblesSectionsSpanningPackets() {
+        String name = "A service with a name long enough to need more than one packet for the SDT. " +
+                "A service with a name long enough to need more than one packet for the SDT.";
+        feed(0x11, sdt(1, 2, 0x10, name));
+
+        Sdt sdt = psiEngine.getSdt();
+        assertThat(sdt.getOriginalNetworkId(), is(2));
+        Sdt.Service service = sdt.getService(0x10);
+        assertThat(service.getName(), is(name));
+        assertThat(service.getProviderName(), is("Provider"));
+        assertTrue(service.hasEitPresentFollowing());
+    }
+
+    @Test
+    public void parsesPmtAgainWhenProgramComesBack() {
+        byte[] pmt = pmt(0x10, 0, 0x101, 0x02, 0x101);
+        feed(0, pat(1, 0, 0x10, 0x100));
+        feed(0x100, pmt);
+
+        feed(0, pat(1, 1, 0x11, 0x200));
+        assertNull(psiEngine.getPmt(0x10));
+
+        feed(0, pat(1, 2, 0x10, 0x100));
+        feed(0x100, pmt);
+        assertThat(psiEngine.getPmt(0x10).getPcrPid(), is(0x101));
+    }
+
+    @Test
+    public void ignoresPmtOnPidNotInPat() {
+        feed(0, pat(1, 0, 0x10, 0x100));
+        feed(0x300, pmt(0x10, 0, 0x101, 0x02, 0x101));
+
+        assertNull(psiEngine.getPmt(0x10));
+        assertThat(pmtChanges, is(0));
+    }
+
+    @Test
+    public void dropsSectionsWithBadCrc() {
+        byte[] pat = pat(1, 0, 0x10, 0x100);
+        pat[9] ^= 0x01;
+        feed(0, pat);
+
+        assertNull(psiEngine.getPat());
+        assertThat(psiEngine.getCrcErrors(), is(1L));
+
+        pat[9] ^= 0x01;
+        feed(0, pat);
+        assertThat(psiEngine.getPat().getPmtPids().get(0x10), is(0x100));
+    }
+
+    @Test
+    public void forgetsTablesOnReset() {
+        feed(0, pat(1, 0, 0x10, 0x100));
+
+        psiEngine.reset();
+
+        assertNull(psiEngine.getPat());
+        assertArrayEquals(PsiEngine.getBasePids(), psiEngine.getPids());
+    }
+
+    private void feed(int pid, byte[] section) {
+        // the pointer field puts the section after some stuffing of the previous one
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(3);
+        payload.write(new byte[] {1, 2, 3}, 0, 3);
+        payload.write(section, 0, section.length);
+        byte[] data = payload.toByteArray();
+
+        for (int p = 0; p < data.length; p += 184) {
+            byte[] packet = new byte[188];
+            Arrays.fill(packet, (byte) 0xFF);
+            packet[0] = 0x47;
+            packet[1] = (byte) ((p == 0 ? 0x40 : 0) | (pid >> 8));
+            packet[2] = (byte) pid;
+            packet[3] = (byte) (0x10 | (counters[pid]++ & 0x0F));
+            System.arraycopy(data, p, packet, 4, Math.min(184, data.length - p));
+            psiEngine.onPacket(packet, 0);
+        }
+    }
+
+    private static byte[] pat(int tsid, int version, int... programAndPids) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int v : programAndPids) {
+            body.write(v >> 8);
+            body.write(v);
+        }
+        return section(0x00, tsid, version, body.toByteArray());
+    }
+
+    private static byte[] pmt(int program, int version, int pcrPid, int... typeAndPids) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(0xE0 | (pcrPid >> 8));
+        body.write(pcrPid);
+        body.write(0xF0);
+        body.write(0);
+        for (int i = 0; i < typeAndPids.length; i += 2) {
+            body.write(typeAndPids[i]);
+            body.write(0xE0 | (typeAndPids[i + 1] >> 8));
+            body.write(typeAndPids[i + 1]);
+            body.write(0xF0);
+            body.write(0);
+        }
+        return section(0x02, program, version, body.toByteArray());
+    }
+
+    private static byte[] sdt(int tsid, int onid, int serviceId, String name) {
+        byte[] provider = "Provider".getBytes(Charset.forName("ISO-8859-1"));
+        byte[] serviceName = name.getBytes(Charset.forName("ISO-8859-1"));
+
+        ByteArrayOutputStream descriptor = new ByteArrayOutputStream();
+        descriptor.write(0x48);
+        descriptor.write(3 + provider.length + serviceName.length);
+        descriptor.write(0x01); // digital television
+        descriptor.write(provider.length);
+        descriptor.write(provider, 0, provider.length);
+        descriptor.write(serviceName.length);
+        descriptor.write(serviceName, 0, serviceName.length);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(onid >> 8);
+        body.write(onid);
+        body.write(0xFF);
+        body.write(serviceId >> 8);
+        body.write(serviceId);
+        body.write(0xFD); // EIT present/following
+        body.write(0x80 | (descriptor.size() >> 8)); // running
+        body.write(descriptor.size());
+        body.write(descriptor.toByteArray(), 0, descriptor.size());
+        return section(0x42, tsid, 0, body.toByteArray());
+    }
+
+    private static byte[] section(int tableId, int extension, int version, byte[] body) {
+        int sectionLength = 5 + body.length + 4;
+        byte[] res = new byte[3 + sectionLength];
+        res[0] = (byte) tableId;
+        res[1] = (byte) (0xB0 | (sectionLength >> 8));
+        res[2] = (byte) sectionLength;
+        res[3] = (byte) (extension >> 8);
+        res[4] = (byte) extension;
+        res[5] = (byte) (0xC1 | (version << 1));
+        res[6] = 0;
+        res[7] = 0;
+        System.arraycopy(body, 0, res, 8, body.length);
+        int crc = Crc32Mpeg2.compute(res, 0, res.length - 4);
+        for (int i = 0; i < 4; i++) res[res.length - 4 + i] = (byte) (crc >> (24 - 8 * i));
+        return res;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.psi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class SptsRemuxerTest {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private SptsRemuxer remuxer;
+    private Pmt pmt;
+
+    @Before
+    public void setUp() {
+        remuxer = new SptsRemuxer(0);
+        byte[] body = {
+                (byte) 0xE1, 0x01, // PCR pid
+                (byte) 0xF0, 0x00, // no program descriptors
+                0x02, (byte) 0xE1, 0x01, (byte) 0xF0, 0x00, // video
+                0x04, (byte) 0xE1, 0x02, (byte) 0xF0, 0x00, // audio
+                0x06, (byte) 0xE1, 0x03, (byte) 0xF0, 0x02, 0x56, 0x00 // teletext
+        };
+        byte[] section = Sections.build(Pmt.TABLE_ID, 0x10, 7, body, body.length);
+        pmt = Pmt.parse(section, 0, section.length);
+    }
+
+    @Test
+    public void writesSingleProgramTables() throws IOException {
+        remuxer.setProgram(1, 0x100, pmt, new HashSet<>(Arrays.asList(0, 0x100, 0x101, 0x102)));
+        remuxer.startBatch(out);
+
+        PsiEngine psiEngine = parse(out.toByteArray());
+        Pat pat = psiEngine.getPat();
+        assertThat(pat.getTransportStreamId(), is(1));
+        assertThat(pat.getPmtPids(), is(Collections.singletonMap(0x10, 0x100)));
+
+        List<Pmt.Stream> streams = psiEngine.getPmt(0x10).getStreams();
+        assertThat(streams.size(), is(2)); // teletext did not pass the filter
+        assertThat(streams.get(1).getPid(), is(0x102));
+        assertThat(psiEngine.getCrcErrors(), is(0L));
+
+        assertTrue(remuxer.replaces(0));
+        assertTrue(remuxer.replaces(0x100));
+        assertFalse(remuxer.replaces(0x101));
+    }
+
+    @Test
+    public void continuesCountersAndKeepsVersionWhileUnchanged() throws IOException {
+        remuxer.setProgram(1, 0x100, pmt, Arrays.asList(0x101, 0x102, 0x103));
+        remuxer.startBatch(out);
+        remuxer.setProgram(1, 0x100, pmt, Arrays.asList(0x101, 0x102, 0x103));
+        remuxer.startBatch(out);
+
+        byte[] ts = out.toByteArray();
+        assertThat(ts.length, is(4 * 188));
+        assertThat(ts[3] & 0x0F, is(0)); // PAT
+        assertThat(ts[188 + 3] & 0x0F, is(0)); // PMT
+        assertThat(ts[2 * 188 + 3] & 0x0F, is(1));
+        assertThat(ts[3 * 188 + 3] & 0x0F, is(1));
+        assertThat(Sections.version(ts, 5), is(Sections.version(ts, 2 * 188 + 5)));
+
+        remuxer.setProgram(1, 0x100, pmt, Arrays.asList(0x101, 0x102));
+        out.reset();
+        remuxer.startBatch(out);
+        assertThat(Sections.version(out.toByteArray(), 188 + 5), is((Sections.version(ts, 188 + 5) + 1) & 0x1F));
+    }
+
+    @Test
+    public void stopsAfterClear() throws IOException {
+        remuxer.setProgram(1, 0x100, pmt, Collections.singleton(0x101));
+        remuxer.startBatch(out);
+        remuxer.clear();
+        out.reset();
+        remuxer.startBatch(out);
+
+        assertThat(out.size(), is(0));
+        assertFalse(remuxer.replaces(0));
+    }
+
+    private static PsiEngine parse(byte[] ts) {
+        PsiEngine psiEngine = new PsiEngine();
+        for (int p = 0; p < ts.length; p += 188) psiEngine.onPacket(ts, p);
+        return psiEngine;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.tools;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class Crc32Mpeg2Test {
+    // PAT of a single program mux: program 1 on pid 0x100, with its CRC_32
+    private final static byte[] PAT = {
+            0x00, (byte) 0xB0, 0x0D, 0x00, 0x01, (byte) 0xC1, 0x00, 0x00,
+            0x00, 0x01, (byte) 0xE1, 0x00, (byte) 0xE8, (byte) 0xF9, 0x5E, 0x7D
+    };
+
+    @Test
+    public void checkValue() {
+        byte[] check = "123456789".getBytes(Charset.forName("US-ASCII"));
+        assertThat(Crc32Mpeg2.compute(check, 0, check.length), is(0x0376E6E7));
+    }
+
+    @Test
+    public void validatesSection() {
+        assertTrue(Crc32Mpeg2.isValid(PAT, 0, PAT.length));
+
+        PAT[10] ^= 0x01;
+        try {
+            assertFalse(Crc32Mpeg2.isValid(PAT, 0, PAT.length));
+        } finally {
+            PAT[10] ^= 0x01;
+        }
+    }
+
+    @Test
+    public void matchesBytewise() {
+        Random random = new Random(42);
+        byte[] data = new byte[4096];
+        random.nextBytes(data);
+
+        for (int length = 0; length < 64; length++) {
+            for (int offset = 0; offset < 9; offset++) {
+                assertThat(Crc32Mpeg2.compute(data, offset, length), is(bytewise(data, offset, length)));
+            }
+        }
+        assertThat(Crc32Mpeg2.compute(data, 3, 4000), is(bytewise(data, 3, 4000)));
+    }
+
+    @Test
+    public void continuesAcrossPackets() {
+        Random random = new Random(7);
+        byte[] section = new byte[1021];
+        random.nextBytes(section);
+
+        int crc = Crc32Mpeg2.INITIAL;
+        for (int p = 0; p < section.length; p += 184) {
+            crc = Crc32Mpeg2.update(crc, section, p, Math.min(184, section.length - p));
+        }
+
+        assertThat(crc, is(Crc32Mpeg2.compute(section, 0, section.length)));
+    }
+
+    private static int bytewise(byte[] buf, int offset, int length) {
+        int crc = 0xFFFFFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (buf[i] & 0xFF) << 24;
+            for (int bit = 0; bit < 8; bit++) crc = (crc << 1) ^ (crc < 0 ? 0x04C11DB7 : 0);
+        }
+        return crc;
+    }
+}
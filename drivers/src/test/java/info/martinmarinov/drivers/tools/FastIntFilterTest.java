@@ -25,6 +25,7 @@ import org.junit.Test;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
@@ -63,6 +64,45 @@ public class FastIntFilterTest {
         f.setFilter(24);
     }
 
+    @Test
+    public void testAddAndRemove() {
+        f.setFilter(1, 2);
+        f.add(5, 19);
+        f.remove(2, 3);
+        confirmOnlyFiltered(1, 5, 19);
+    }
+
+    @Test
+    public void testReaderNeverSeesPartialUpdate() throws InterruptedException {
+        final FastIntFilter filter = new FastIntFilter(0x1fff);
+        filter.setFilter(0, 100, 200);
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200_000; i++) {
+                    // pid 0 is in every set, pid 300 never is
+                    if (i % 2 == 0) filter.setFilter(0, 100, 200); else filter.setFilter(0, 101, 201, 0x1fff);
+                    filter.add(4000 + (i & 63));
+                    filter.remove(4000 + (i & 63));
+                }
+                done.set(true);
+            }
+        };
+        writer.start();
+
+        int checks = 0;
+        while (!done.get()) {
+            assertThat(filter.isFiltered(0), is(true));
+            assertThat(filter.isFiltered(300), is(false));
+            checks++;
+        }
+        writer.join();
+
+        assertThat(checks > 0, is(true));
+    }
+
     private void confirmOnlyFiltered(int ... vals) {
         Set<Integer> set = new HashSet<>();
         for (int val : vals) set.add(val);
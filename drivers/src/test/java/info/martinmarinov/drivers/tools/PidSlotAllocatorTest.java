@@ -0,0 +1,68 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.tools;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class PidSlotAllocatorTest {
+    private final PidSlotAllocator allocator = new PidSlotAllocator(4);
+
+    @Test
+    public void firstUpdateWritesEverySlot() {
+        assertArrayEquals(new int[] {0, 1, 2, 3}, allocator.update(0, 100));
+        assertThat(allocator.getPid(1), is(100));
+        assertThat(allocator.getPid(2), is(PidSlotAllocator.FREE));
+        assertThat(allocator.getMask(), is(0b11L));
+    }
+
+    @Test
+    public void onlyChangedSlotsAreReported() {
+        allocator.update(0, 100, 101);
+
+        assertArrayEquals(new int[] {1}, allocator.update(0, 102, 101)); // 102 takes the slot 100 left
+        assertArrayEquals(new int[] {3}, allocator.update(0, 102, 101, 200, 200));
+        assertArrayEquals(new int[] {0, 2}, allocator.update(102, 200));
+        assertArrayEquals(new int[0], allocator.update(200, 102));
+        assertThat(allocator.getMask(), is(0b1010L));
+    }
+
+    @Test
+    public void rejectsWhatDoesNotFit() {
+        allocator.update(1, 2);
+
+        assertThat(allocator.update(1, 2, 3, 4, 5), nullValue());
+        assertThat(allocator.update(0x2000), nullValue());
+        assertThat(allocator.getMask(), is(0b11L));
+        assertArrayEquals(new int[0], allocator.update(2, 1));
+    }
+
+    @Test
+    public void invalidateRewritesEverything() {
+        allocator.update(1, 2);
+        allocator.invalidate();
+
+        assertArrayEquals(new int[] {0, 1, 2, 3}, allocator.update(1, 2));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.tools.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingOutputStreamTest {
+    private final static int PACKET = 188;
+    // 30 Mbit/s mux delivered in 5 KiB USB requests
+    private final static int PACKETS_PER_SECOND = 30_000_000 / 8 / PACKET;
+    private final static int PACKETS_PER_BATCH = 5 * 1024 / PACKET;
+
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+    @Test
+    public void lowLatencyWritesOncePerBatch() throws IOException {
+        CoalescingOutputStream out = new CoalescingOutputStream(sink, 128 * PACKET, 100);
+
+        long writes = simulateOneSecond(out);
+
+        // one write per packet would have been ~20k syscalls
+        assertThat(writes, is((long) (PACKETS_PER_SECOND + PACKETS_PER_BATCH - 1) / PACKETS_PER_BATCH));
+        assertThat(sink.size(), is(PACKETS_PER_SECOND * PACKET));
+    }
+
+    @Test
+    public void throughputWritesOncePerBlock() throws IOException {
+        CoalescingOutputStream out = new CoalescingOutputStream(sink, 128 * PACKET, 60_000);
+        out.setFlushPolicy(CoalescingOutputStream.FlushPolicy.THROUGHPUT);
+
+        long writes = simulateOneSecond(out);
+        out.flush();
+
+        assertTrue(writes <= PACKETS_PER_SECOND / 128);
+        assertThat(sink.size(), is(PACKETS_PER_SECOND * PACKET));
+    }
+
+    @Test
+    public void throughputFlushesStaleData() throws IOException, InterruptedException {
+        CoalescingOutputStream out = new CoalescingOutputStream(sink, 128 * PACKET, 1);
+        out.setFlushPolicy(CoalescingOutputStream.FlushPolicy.THROUGHPUT);
+
+        out.write(new byte[PACKET], 0, PACKET);
+        Thread.sleep(5);
+        out.endOfBatch();
+
+        assertThat(sink.size(), is(PACKET));
+    }
+
+    @Test
+    public void keepsOrderAcrossSources() throws IOException {
+        CoalescingOutputStream out = new CoalescingOutputStream(sink, 4, 100);
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(new byte[] {5, 6, 7});
+
+        out.write(new byte[] {1, 2, 3}, 0, 3);
+        out.write(4);
+        out.write(direct, 0, 3);
+        out.write(new byte[] {8, 9, 10, 11, 12}, 0, 5); // larger than the staging block
+        out.endOfBatch();
+
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12}, sink.toByteArray());
+    }
+
+    @Test
+    public void splitsLargeBuffersIntoBlocks() throws IOException {
+        CoalescingOutputStream out = new CoalescingOutputStream(sink, 4, 100);
+        ByteBuffer direct = ByteBuffer.allocateDirect(10);
+        direct.put(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+
+        out.write(direct, 1, 9);
+        out.endOfBatch();
+
+        assertThat(out.getWriteCount(), is(3L));
+        assertArrayEquals(new byte[] {2, 3, 4, 5, 6, 7, 8, 9, 10}, sink.toByteArray());
+    }
+
+    @Test
+    public void closeWritesStagedData() throws IOException {
+        CoalescingOutputStream out = new CoalescingOutputStream(sink, 128 * PACKET, 60_000);
+        out.setFlushPolicy(CoalescingOutputStream.FlushPolicy.THROUGHPUT);
+
+        out.write(new byte[PACKET], 0, PACKET);
+        out.endOfBatch();
+        out.close();
+
+        assertThat(sink.size(), is(PACKET));
+    }
+
+    private long simulateOneSecond(CoalescingOutputStream out) throws IOException {
+        byte[] packet = new byte[PACKET];
+        for (int i = 0; i < PACKETS_PER_SECOND; i++) {
+            out.write(packet, 0, PACKET);
+            if ((i + 1) % PACKETS_PER_BATCH == 0) out.endOfBatch();
+        }
+        out.endOfBatch();
+        return out.getWriteCount();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.drivers.tools.io;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class RingBufferTest {
+    @Test
+    public void wrapsAround() throws IOException {
+        RingBuffer ring = new RingBuffer(5, RingBuffer.OverflowPolicy.DROP);
+        byte[] read = new byte[5];
+
+        ring.write(new byte[] {1, 2, 3}, 0, 3);
+        assertThat(ring.read(read, 0, 2, false), is(2));
+        ring.write(new byte[] {4, 5, 6, 7}, 0, 4);
+        assertThat(ring.read(read, 2, 3, false), is(3));
+        assertThat(ring.read(read, 0, 0, false), is(0));
+
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, read);
+        assertThat(ring.getInputStream().available(), is(2));
+    }
+
+    @Test
+    public void dropsWholeWritesOnOverflow() throws IOException {
+        RingBuffer ring = new RingBuffer(4, RingBuffer.OverflowPolicy.DROP);
+        byte[] read = new byte[4];
+
+        ring.write(new byte[] {1, 2, 3}, 0, 3);
+        ring.write(new byte[] {4, 5}, 0, 2); // does not fit
+
+        assertThat(ring.getOverflowCount(), is(1L));
+        assertThat(ring.getOverflowBytes(), is(2L));
+        assertThat(ring.read(read, 0, 4, false), is(3));
+        assertThat(ring.read(read, 0, 4, false), is(0));
+    }
+
+    @Test
+    public void blockingReadWakesUpOnWrite() throws Exception {
+        final RingBuffer ring = new RingBuffer(16, RingBuffer.OverflowPolicy.BLOCK);
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 1000; i++) ring.write(new byte[] {(byte) i}, 0, 1);
+                    ring.getOutputStream().close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        producer.start();
+
+        InputStream in = ring.getInputStream();
+        int expected = 0, b;
+        while ((b = in.read()) >= 0) {
+            assertThat(b, is(expected++ & 0xFF));
+        }
+        producer.join();
+
+        assertThat(expected, is(1000));
+        assertThat(ring.getOverflowCount(), is(0L));
+    }
+
+    @Test
+    public void spillsInOrderAndDrainsBack() throws IOException {
+        RingBuffer ring = new RingBuffer(4, RingBuffer.OverflowPolicy.DROP);
+        ring.enableSpill(new File(System.getProperty("java.io.tmpdir")), 5);
+        byte[] read = new byte[4];
+
+        ring.write(new byte[] {1, 2, 3}, 0, 3);
+        ring.write(new byte[] {4, 5}, 0, 2); // spilled
+        ring.write(new byte[] {6}, 0, 1); // moves 4 into memory, 6 has to queue behind 5
+        ring.write(new byte[] {7, 8, 9, 10}, 0, 4); // does not fit on disk either
+
+        assertThat(ring.getSpillEvents(), is(1L));
+        assertThat(ring.getSpilledBytes(), is(3L));
+        assertThat(ring.getOverflowCount(), is(1L));
+
+        assertThat(ring.read(read, 0, 4, false), is(4));
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, read);
+
+        ring.write(new byte[] {11}, 0, 1); // drains the spill file first
+        assertThat(ring.read(read, 0, 4, false), is(3));
+        assertArrayEquals(new byte[] {5, 6, 11, 4}, read);
+        ring.close();
+    }
+
+    @Test
+    public void readerDrainsSpillAfterProducerStops() throws IOException {
+        RingBuffer ring = new RingBuffer(4, RingBuffer.OverflowPolicy.DROP);
+        ring.enableSpill(new File(System.getProperty("java.io.tmpdir")), 16);
+
+        ring.write(new byte[] {1, 2, 3}, 0, 3);
+        ring.write(new byte[] {4, 5}, 0, 2); // spilled
+        ring.write(new byte[] {6, 7, 8, 9, 10}, 0, 5); // larger than the memory, spilled
+        ring.close();
+
+        InputStream in = ring.getInputStream();
+        byte[] read = new byte[10];
+        int total = 0;
+        while (total < read.length) total += in.read(read, total, read.length - total);
+
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, read);
+        assertThat(in.read(), is(-1));
+    }
+
+    @Test(expected = IOException.class)
+    public void writingAfterCloseFails() throws IOException {
+        RingBuffer ring = new RingBuffer(16, RingBuffer.OverflowPolicy.DROP);
+        ring.getInputStream().close();
+        ring.write(new byte[1], 0, 1);
+    }
+}
@@ -58,6 +58,8 @@ public class DeviceChooserActivity extends FragmentActivity implements ListPicke
     private final static String CONTRACT_RAW_TRACE = "RawTrace";
     private final static String CONTRACT_USB_PRODUCT_IDS = "ProductIds";
     private final static String CONTRACT_USB_VENDOR_IDS = "VendorIds";
+    // Optional boolean extra of the launching intent, the full stream is written to the transfer socket from native code
+    private final static String CONTRACT_PASS_THROUGH = "PassThrough";
 
     private final Intent response = new Intent();
 
@@ -89,7 +91,7 @@ public class DeviceChooserActivity extends FragmentActivity implements ListPicke
             if (deviceFilters.size() > 1 || !dvbFileDevices.isEmpty()) {
                 ListPickerFragmentDialog.showOneInstanceOnly(getSupportFragmentManager(), deviceFilters);
             } else {
-                DvbService.requestOpen(this, deviceFilters.get(0));
+                DvbService.requestOpen(this, deviceFilters.get(0), isPassThroughRequested());
             }
         } catch (DvbException e) {
             handleException(e);
@@ -98,7 +100,11 @@ public class DeviceChooserActivity extends FragmentActivity implements ListPicke
 
     @Override
     public void onListPickerDialogItemSelected(@NonNull DeviceFilter deviceFilter) {
-        DvbService.requestOpen(this, deviceFilter);
+        DvbService.requestOpen(this, deviceFilter, isPassThroughRequested());
+    }
+
+    private boolean isPassThroughRequested() {
+        return getIntent().getBooleanExtra(CONTRACT_PASS_THROUGH, false);
     }
 
     @Override
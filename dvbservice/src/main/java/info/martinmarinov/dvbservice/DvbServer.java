@@ -39,9 +39,14 @@ class DvbServer implements Closeable {
     private final ServerSocket transferSocket = new ServerSocket();
 
     private final DvbDevice dvbDevice;
+    private final boolean passThrough;
 
-    DvbServer(DvbDevice dvbDevice) throws IOException {
+    /**
+     * @param passThrough whether to write the stream to the transfer socket straight from native code, see {@link DvbDevice#streamTo}
+     */
+    DvbServer(DvbDevice dvbDevice, boolean passThrough) throws IOException {
         this.dvbDevice = dvbDevice;
+        this.passThrough = passThrough;
     }
 
     DvbServerPorts bind(InetAddress address) throws IOException {
@@ -87,7 +92,7 @@ class DvbServer implements Closeable {
             outputStream = control.getOutputStream();
 
             final InputStream finInputStream = inputStream;
-            TransferThread worker = new TransferThread(dvbDevice, transferSocket, new TransferThread.OnClosedCallback() {
+            TransferThread worker = new TransferThread(dvbDevice, transferSocket, passThrough, new TransferThread.OnClosedCallback() {
                 @Override
                 public void onClosed() {
                     // Close input stream to cancel the request parsing
@@ -44,6 +44,7 @@ import java.util.List;
 import info.martinmarinov.drivers.DeviceFilter;
 import info.martinmarinov.drivers.DvbDevice;
 import info.martinmarinov.drivers.DvbException;
+import info.martinmarinov.drivers.tools.io.RingBuffer;
 import info.martinmarinov.drivers.usb.DvbUsbDeviceRegistry;
 import info.martinmarinov.dvbservice.tools.InetAddressTools;
 import info.martinmarinov.dvbservice.tools.TsDumpFileUtils;
@@ -51,17 +52,21 @@ import info.martinmarinov.dvbservice.tools.TsDumpFileUtils;
 public class DvbService extends Service {
     private static final String TAG = DvbService.class.getSimpleName();
     private final static int ONGOING_NOTIFICATION_ID = 743713489; // random id
+    // Around 17 seconds of a 30 Mbit/s mux if the client stops reading
+    private final static long SPILL_MAX_BYTES = 64L * 1024 * 1024;
 
     public static final String BROADCAST_ACTION = "info.martinmarinov.dvbservice.DvbService.BROADCAST";
 
     private final static String DEVICE_FILTER = "DeviceFilter";
+    private final static String PASS_THROUGH = "PassThrough";
     private final static String STATUS_MESSAGE = "StatusMessage";
 
     private static Thread worker;
 
-    static void requestOpen(Activity activity, DeviceFilter deviceFilter) {
+    static void requestOpen(Activity activity, DeviceFilter deviceFilter, boolean passThrough) {
         Intent intent = new Intent(activity, DvbService.class)
-                .putExtra(DEVICE_FILTER, deviceFilter);
+                .putExtra(DEVICE_FILTER, deviceFilter)
+                .putExtra(PASS_THROUGH, passThrough);
         activity.startService(intent);
     }
 
@@ -72,6 +77,7 @@ public class DvbService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         final DeviceFilter deviceFilter = (DeviceFilter) intent.getSerializableExtra(DEVICE_FILTER);
+        final boolean passThrough = intent.getBooleanExtra(PASS_THROUGH, false);
 
         // Kill existing connection
         if (worker != null && worker.isAlive()) {
@@ -88,8 +94,11 @@ public class DvbService extends Service {
             @Override
             public void run() {
                 DvbServer dvbServer = null;
+                DvbDevice dvbDevice = null;
                 try {
-                    dvbServer = new DvbServer(getDeviceFromFilter(deviceFilter));
+                    dvbDevice = getDeviceFromFilter(deviceFilter);
+                    if (!passThrough) enableSpillToDisk(dvbDevice);
+                    dvbServer = new DvbServer(dvbDevice, passThrough);
                     DvbServerPorts dvbServerPorts = dvbServer.bind(InetAddressTools.getLocalLoopback());
                     dvbServer.open();
                     // Device was opened! Tell client it's time to connect
@@ -104,6 +113,12 @@ public class DvbService extends Service {
                     if (dvbServer != null) dvbServer.close();
                 }
 
+                if (dvbDevice != null) {
+                    RingBuffer buffer = dvbDevice.getStreamBuffer();
+                    Log.d(TAG, "Stream spilled " + buffer.getSpilledBytes() + " bytes in " + buffer.getSpillEvents() +
+                            " events, max catch up " + buffer.getMaxCatchUpMs() + " ms, dropped " + buffer.getOverflowBytes() + " bytes");
+                }
+
                 Log.d(TAG, "Finished");
                 worker = null;
                 stopSelf();
@@ -114,6 +129,15 @@ public class DvbService extends Service {
         return START_NOT_STICKY;
     }
 
+    private void enableSpillToDisk(DvbDevice dvbDevice) {
+        try {
+            dvbDevice.enableSpillToDisk(getCacheDir(), SPILL_MAX_BYTES);
+        } catch (DvbException e) {
+            // Not fatal, the stream will drop data instead if the client stalls
+            Log.w(TAG, "Cannot spill stream to disk", e);
+        }
+    }
+
     private void startForeground() {
         NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         String NOTIFICATION_CHANNEL_ID = "DvbDriver";
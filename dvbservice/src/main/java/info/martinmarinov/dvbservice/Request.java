@@ -26,6 +26,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import info.martinmarinov.drivers.DeliverySystem;
@@ -33,6 +37,10 @@ import info.martinmarinov.drivers.DvbCapabilities;
 import info.martinmarinov.drivers.DvbDevice;
 import info.martinmarinov.drivers.DvbException;
 import info.martinmarinov.drivers.DvbStatus;
+import info.martinmarinov.drivers.psi.Nit;
+import info.martinmarinov.drivers.psi.Pat;
+import info.martinmarinov.drivers.psi.Pmt;
+import info.martinmarinov.drivers.psi.Sdt;
 
 /**
  * The client sends a command consisting of a variable number of Longs in the following format:
@@ -55,7 +63,7 @@ enum Request {
                     // are available.
                     // WARNING: Backward compatibility should always be ensured
                     return Response.success(
-                            0L, // parameter 1, version, when adding capabilities, change that number.
+                            5L, // parameter 1, version, when adding capabilities, change that number.
                             ALL_REQUESTS.length // parameter 2, can be useful for determining supported commands
                     );
                 }
@@ -138,6 +146,169 @@ enum Request {
                     (long) dvbDevice.getDeviceFilter().getProductId() // parameter 6
             );
         }
+    }),
+    // Since protocol version 1
+    REQ_SET_DROP_NULL_PACKETS(new Executor() {
+        @Override
+        public Response execute(DvbDevice dvbDevice, long... payload) {
+            boolean drop = payload[0] != 0; // 1 to leave pid 0x1FFF out of the stream, 0 to keep it
+            dvbDevice.setDropNullPackets(drop);
+            return Response.SUCCESS;
+        }
+    }),
+    REQ_GET_PACKET_COUNTS(new Executor() {
+        @Override
+        public Response execute(DvbDevice dvbDevice, long... payload) {
+            // Clients can sample these to compute the real mux rate when stuffing is dropped
+            return Response.success(
+                    dvbDevice.readPacketCount(), // parameter 1, packets since the last tune
+                    dvbDevice.readNullPacketCount(), // parameter 2, of which stuffing
+                    System.currentTimeMillis() // parameter 3, when the counts were taken
+            );
+        }
+    }),
+    // Since protocol version 2, the tables are collected by the driver while the stream is running
+    REQ_GET_PAT(new Executor() {
+        @Override
+        public Response execute(DvbDevice dvbDevice, long... payload) {
+            Pat pat = dvbDevice.getPsiEngine().getPat();
+            if (pat == null) return Response.ERROR; // not received yet
+
+            List<Long> res = new ArrayList<>();
+            res.add((long) pat.getTransportStreamId()); // parameter 1
+            res.add((long) pat.getVersion()); // parameter 2
+            for (Map.Entry<Integer, Integer> program : pat.getPmtPids().entrySet()) {
+                // followed by pairs of program number and PMT pid
+                res.add((long) program.getKey());
+                res.add((long) program.getValue());
+            }
+            return successWithPairs(res);
+        }
+    }),
+    REQ_GET_PMT(new Executor() {
+        @Override
+        public Response execute(DvbDevice dvbDevice, long... payload) {
+            Pmt pmt = dvbDevice.getPsiEngine().getPmt((int) payload[0]); // program number
+            if (pmt == null) return Response.ERROR;
+
+            List<Long> res = new ArrayList<>();
+            res.add((long) pmt.getVersion()); // parameter 1
+            res.add((long) pmt.getPcrPid()); // parameter 2
+            for (Pmt.Stream stream : pmt.getStreams()) {
+                // followed by pairs of stream type and pid
+                res.add((long) stream.getStreamType());
+                res.add((long) stream.getPid());
+            }
+            return successWithPairs(res);
+        }
+    }),
+    REQ_GET_SDT(new Executor() {
+        @Override
+        public Response execute(DvbDevice dvbDevice, long... payload) {
+            Sdt sdt = dvbDevice.getPsiEngine().getSdt();
+            if (sdt == null) return Response.ERROR;
+
+            List<Long> res = new ArrayList<>();
+            res.add((long) sdt.getTransportStreamId()); // parameter 1
+            res.add((long) sdt.getOriginalNetworkId()); // parameter 2
+            res.add((long) sdt.getVersion()); // parameter 3
+            for (Sdt.Service service : sdt.getServices()) {
+                // followed by pairs of service id and flags: bits 0-7 service type, 8-10 running status,
+                // 11 scrambled, 12 EIT schedule, 13 EIT present/following
+                res.add((long) service.getServiceId());
+                res.add((long) (service.getServiceType() |
+                        (service.getRunningStatus() << 8) |
+                        (service.isScrambled() ? 1 << 11 : 0) |
+                        (service.hasEitSchedule() ? 1 << 12 : 0) |
+                        (service.hasEitPresentFollowing() ? 1 << 13 : 0)));
+            }
+            return successWithPairs(res);
+        }
+    }),
+    REQ_GET_NIT(new Executor() {
+        @Override
+        public Response execute(DvbDevice dvbDevice, long... payload) {
+            Nit nit = dvbDevice.getPsiEngine().getNit();
+            if (nit == null) return Response.ERROR;
+
+            List<Long> res = new ArrayList<>();
+            res.add((long) nit.getNetworkId()); // parameter 1
+            res.add((long) nit.getVersion()); // parameter 2
+            for (Nit.TransportStream transportStream : nit.getTransportStreams()) {
+                // followed by pairs of transport stream id and original network id
+                res.add((long) transportStream.getTransportStreamId());
+                res.add((long) transportStream.getOriginalNetworkId());
+            }
+            return successWithPairs(res);
+        }
+    }),
+    REQ_GET_SERVICE_NAME(new Executor() {
+        @Override
+        public Response execute(DvbDevice dvbDevice, long... payload) {
+            Sdt sdt = dvbDevice.getPsiEngine().getSdt();
+            Sdt.Service service = sdt == null ? null : sdt.getService((int) payload[0]); // service id
+            if (service == null) return Response.ERROR;
+
+            // parameter 1 is the length in bytes of the UTF-8 name, followed by the bytes packed 8 per long, big endian
+            return Response.success(packString(service.getName()));
+        }
+    }),
+    // Since protocol version 3
+    REQ_SET_SERVICE(new Executor() {
+        @Override
+        public Response execute(DvbDevice dvbDevice, long... payload) throws DvbException {
+            // The driver resolves the pids of the service from the PAT and PMT and follows changes of the PMT.
+            // Parameter 1 is the service id, -1 to stop following. Parameter 2 is flags: bit 0 to include the
+            // ECM pids, bit 1 to include teletext. Since protocol version 4, bit 2 replaces the PAT and PMT in the
+            // stream with ones listing only the service
+            int serviceId = (int) payload[0];
+            long flags = payload.length > 1 ? payload[1] : 0;
+            dvbDevice.setSingleProgramOutput((flags & 4) != 0);
+            dvbDevice.setService(serviceId, (flags & 1) != 0, (flags & 2) != 0);
+            return Response.SUCCESS;
+        }
+    }),
+    // Since protocol version 5
+    REQ_SET_EPG_COLLECTION(new Executor() {
+        @Override
+        public Response execute(DvbDevice dvbDevice, long... payload) {
+            dvbDevice.setEpgCollection(payload[0] != 0); // 1 to collect the EIT of the current mux, 0 to stop and drop it
+            return Response.SUCCESS;
+        }
+    }),
+    REQ_GET_EIT_INDEX(new Executor() {
+        @Override
+        public Response execute(DvbDevice dvbDevice, long... payload) {
+            Map<Integer, Integer> versions = dvbDevice.getPsiEngine().getEitCache().getVersions((int) payload[0]); // service id
+
+            // Pairs of tableId << 8 | sectionNumber and version of each cached section of the service, clients
+            // only need to fetch the sections whose version changed since the last time
+            List<Long> res = new ArrayList<>();
+            for (Map.Entry<Integer, Integer> section : versions.entrySet()) {
+                res.add((long) section.getKey());
+                res.add((long) section.getValue());
+            }
+            return successWithPairs(res);
+        }
+    }),
+    REQ_GET_EIT_SECTION(new Executor() {
+        @Override
+        public Response execute(DvbDevice dvbDevice, long... payload) {
+            int serviceId = (int) payload[0];
+            int tableId = (int) payload[1];
+            int sectionNumber = (int) payload[2];
+            int byteOffset = (int) payload[3]; // sections may not fit in one response, they are read in parts
+            byte[] section = dvbDevice.getPsiEngine().getEitCache().getSection(serviceId, tableId, sectionNumber);
+            if (section == null || byteOffset < 0 || byteOffset > section.length) return Response.ERROR;
+
+            // parameter 1 is the length of the whole section, CRC included, followed by the bytes from the offset
+            // in the same format as REQ_GET_SERVICE_NAME
+            long[] part = packBytes(section, byteOffset, section.length - byteOffset, MAX_RESPONSE_LONGS - 1);
+            long[] res = new long[1 + part.length];
+            res[0] = section.length;
+            System.arraycopy(part, 0, res, 1, part.length);
+            return Response.success(res);
+        }
     });
 
     private final static String TAG = Request.class.getSimpleName();
@@ -149,6 +320,36 @@ enum Request {
         this.executor = executor;
     }
 
+    // One long is the success flag
+    private final static int MAX_RESPONSE_LONGS = 254;
+
+    /**
+     * Truncates to whole pairs if the list does not fit in a response
+     */
+    private static Response successWithPairs(List<Long> values) {
+        int size = values.size();
+        if (size > MAX_RESPONSE_LONGS) size -= ((size - MAX_RESPONSE_LONGS + 1) / 2) * 2;
+        long[] res = new long[size];
+        for (int i = 0; i < size; i++) res[i] = values.get(i);
+        return Response.success(res);
+    }
+
+    private static long[] packString(String value) {
+        byte[] bytes = value.getBytes(Charset.forName("UTF-8"));
+        return packBytes(bytes, 0, bytes.length, MAX_RESPONSE_LONGS);
+    }
+
+    /**
+     * @return the number of bytes packed followed by the bytes, 8 per long, big endian, truncated to fit in maxLongs
+     */
+    private static long[] packBytes(byte[] bytes, int offset, int length, int maxLongs) {
+        length = Math.min(length, (maxLongs - 1) * 8);
+        long[] res = new long[1 + (length + 7) / 8];
+        res[0] = length;
+        for (int i = 0; i < length; i++) res[1 + i / 8] |= (bytes[offset + i] & 0xFFL) << (56 - 8 * (i % 8));
+        return res;
+    }
+
     private Response execute(DvbDevice dvbDevice, long... payload) {
         try {
             return executor.execute(dvbDevice, payload);
@@ -20,12 +20,15 @@
 
 package info.martinmarinov.dvbservice;
 
+import android.os.ParcelFileDescriptor;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
 
 import info.martinmarinov.drivers.DvbDevice;
 
@@ -33,13 +36,21 @@ class TransferThread extends Thread {
     private final DvbDevice dvbDevice;
     private final ServerSocket serverSocket;
     private final OnClosedCallback callback;
+    private final boolean passThrough;
+    private final CountDownLatch streamEnded = new CountDownLatch(1);
 
     private IOException lastException = null;
     private InputStream transportStream;
+    private volatile Socket passThroughSocket;
 
-    TransferThread(DvbDevice dvbDevice, ServerSocket serverSocket, OnClosedCallback callback) {
+    /**
+     * @param passThrough whether the device should write the stream to the socket from native code
+     *                    instead of this thread copying it from the demux
+     */
+    TransferThread(DvbDevice dvbDevice, ServerSocket serverSocket, boolean passThrough, OnClosedCallback callback) {
         this.dvbDevice = dvbDevice;
         this.serverSocket = serverSocket;
+        this.passThrough = passThrough;
         this.callback = callback;
     }
 
@@ -48,6 +59,7 @@ class TransferThread extends Thread {
         super.interrupt();
         quietClose(serverSocket);
         quietClose(transportStream);
+        quietShutdown(passThroughSocket);
     }
 
     @Override
@@ -65,18 +77,32 @@ class TransferThread extends Thread {
 
             os = socket.getOutputStream();
 
-            transportStream = dvbDevice.getTransportStream(new DvbDevice.StreamCallback() {
+            DvbDevice.StreamCallback streamCallback = new DvbDevice.StreamCallback() {
                 @Override
                 public void onStreamException(IOException exception) {
                     lastException = exception;
+                    streamEnded.countDown();
                     interrupt();
                 }
 
                 @Override
                 public void onStoppedStreaming() {
+                    streamEnded.countDown();
                     interrupt();
                 }
-            });
+            };
+
+            if (passThrough) {
+                passThroughSocket = socket;
+                dvbDevice.streamTo(ParcelFileDescriptor.fromSocket(socket), streamCallback);
+                // Only wait, the data pump writes to the socket itself until the stream ends or we are interrupted
+                try {
+                    streamEnded.await();
+                } catch (InterruptedException ignored) {}
+                return;
+            }
+
+            transportStream = dvbDevice.getTransportStream(streamCallback);
             while (!isInterrupted()) {
                 int inlength = transportStream.read(buf);
 
@@ -90,6 +116,7 @@ class TransferThread extends Thread {
         } catch (IOException e) {
             lastException = e;
         } finally {
+            if (passThrough) dvbDevice.stopStream();
             quietClose(os);
             quietClose(socket);
             quietClose(transportStream);
@@ -125,6 +152,17 @@ class TransferThread extends Thread {
         }
     }
 
+    private void quietShutdown(Socket s) {
+        if (s != null) {
+            try {
+                // Unlike close, this also wakes up a native write blocked on a duplicate of the socket
+                s.shutdownOutput();
+            } catch (IOException e) {
+                if (lastException == null) lastException = e;
+            }
+        }
+    }
+
     private void quietClose(ServerSocket s) {
         if (s != null) {
             try {
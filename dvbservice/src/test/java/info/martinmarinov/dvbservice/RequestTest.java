@@ -68,7 +68,7 @@ public class RequestTest {
 
         assertThat(response.length, is(3));
         assertThat(response[0], is(1L)); // success
-        assertThat(response[1], is(0L)); // version of protocol
+        assertThat(response[1], is(5L)); // version of protocol
         assertThat(response[2], is((long) Request.values().length)); // number of available requests
     }
 
@@ -145,6 +145,61 @@ public class RequestTest {
         assertThat(response[6], is(0x2838L)); // USB product id
     }
 
+    @Test
+    public void testSetDropNullPackets() {
+        long[] response = getRawResponse(6, 1L);
+
+        assertThat(response.length, is(1));
+        assertThat(response[0], is(1L)); // success
+
+        verify(dvbDevice).setDropNullPackets(true);
+    }
+
+    @Test
+    public void testGetPacketCounts() {
+        when(dvbDevice.readPacketCount()).thenReturn(1000L);
+        when(dvbDevice.readNullPacketCount()).thenReturn(150L);
+
+        long[] response = getRawResponse(7);
+
+        assertThat(response.length, is(4));
+        assertThat(response[0], is(1L)); // success
+        assertThat(response[1], is(1000L)); // packets
+        assertThat(response[2], is(150L)); // null packets
+    }
+
+    @Test
+    public void testSetService() throws Exception {
+        long[] response = getRawResponse(13, 0x10, 3L);
+
+        assertThat(response.length, is(1));
+        assertThat(response[0], is(1L)); // success
+
+        verify(dvbDevice).setSingleProgramOutput(false);
+        verify(dvbDevice).setService(0x10, true, true);
+    }
+
+    @Test
+    public void testSetServiceWithSingleProgramOutput() throws Exception {
+        long[] response = getRawResponse(13, 0x10, 4L);
+
+        assertThat(response.length, is(1));
+        assertThat(response[0], is(1L)); // success
+
+        verify(dvbDevice).setSingleProgramOutput(true);
+        verify(dvbDevice).setService(0x10, false, false);
+    }
+
+    @Test
+    public void testSetEpgCollection() throws Exception {
+        long[] response = getRawResponse(14, 1L);
+
+        assertThat(response.length, is(1));
+        assertThat(response[0], is(1L)); // success
+
+        verify(dvbDevice).setEpgCollection(true);
+    }
+
     /** Helper to do serialization/deserialization to bytes */
     private long[] getRawResponse(int requestOrdinal, long ... reqArgs) {
         try {
@@ -7,43 +7,20 @@
 #include <linux/usbdevice_fs.h>
 #include <android/log.h>
 #include <memory.h>
+#include <time.h>
 
-#define TAG "JNI_IsoRequest"
-
-typedef struct isoreq {
-    unsigned char endpointAddr;
-    int number_of_packets;
-    int id;
-    size_t packetSize;
-} isoreq_t;
-
-JNIEXPORT jlong JNICALL
-                Java_info_martinmarinov_usbxfer_IsoRequest_jni_1allocate_1urb(JNIEnv *env, jclass type, jint endpointAddr, jint id, jint maxPackets, jint packetSize) {
-    struct usbdevfs_urb * urb = (struct usbdevfs_urb *) malloc(sizeof(struct usbdevfs_urb) + (size_t) (maxPackets * sizeof(struct usbdevfs_iso_packet_desc)));
-
-    urb->usercontext = (isoreq_t *) malloc(sizeof(isoreq_t));
-    isoreq_t * isor = (isoreq_t *) urb->usercontext;
-    isor->id = (int) id;
-    isor->endpointAddr = (unsigned char) endpointAddr;
-    isor->number_of_packets = maxPackets;
-    isor->packetSize = (size_t) packetSize;
-
-    urb->buffer_length = packetSize * maxPackets;
-    urb->buffer = malloc((size_t) urb->buffer_length);
-
-    return (jlong) urb;
-}
+#include "isorequest.h"
 
+#define TAG "JNI_IsoRequest"
 
-JNIEXPORT void JNICALL
-Java_info_martinmarinov_usbxfer_IsoRequest_jni_1reset_1urb(JNIEnv *env, jclass type, jlong ptr) {
+static void reset_urb(struct usbdevfs_urb * urb) {
     int i;
-    struct usbdevfs_urb * urb = (struct usbdevfs_urb *) ptr;
     isoreq_t * isor = (isoreq_t *) urb->usercontext;
 
     urb->endpoint = isor->endpointAddr;
-    urb->type = USBDEVFS_URB_TYPE_BULK;
-    urb->flags = 0;
+    urb->type = isor->iso ? USBDEVFS_URB_TYPE_ISO : USBDEVFS_URB_TYPE_BULK;
+    // Let the kernel schedule iso URBs on the next available frame
+    urb->flags = isor->iso ? USBDEVFS_URB_ISO_ASAP : 0;
     urb->actual_length = 0;
     urb->start_frame = 0;
 
@@ -60,6 +37,35 @@ Java_info_martinmarinov_usbxfer_IsoRequest_jni_1reset_1urb(JNIEnv *env, jclass t
     }
 }
 
+// Iso frames are spread at packetSize intervals in the buffer, move the good ones together.
+// Returns the length of the compacted data.
+static int compact_iso_frames(struct usbdevfs_urb * urb, int * frame_errors) {
+    int i, dst = 0;
+    unsigned int len;
+    isoreq_t * isor = (isoreq_t *) urb->usercontext;
+    unsigned char * buffer = (unsigned char *) urb->buffer;
+
+    *frame_errors = 0;
+    for (i = 0; i < urb->number_of_packets; i++) {
+        len = urb->iso_frame_desc[i].actual_length;
+        if (urb->iso_frame_desc[i].status != 0) {
+            // the data of a bad frame cannot be trusted
+            (*frame_errors)++;
+            continue;
+        }
+        if (len == 0) continue;
+
+        if (dst != i * (int) isor->packetSize) memmove(buffer + dst, buffer + i * isor->packetSize, len);
+        dst += len;
+    }
+    return dst;
+}
+
+JNIEXPORT void JNICALL
+Java_info_martinmarinov_usbxfer_IsoRequest_jni_1reset_1urb(JNIEnv *env, jclass type, jlong ptr) {
+    reset_urb((struct usbdevfs_urb *) ptr);
+}
+
 
 JNIEXPORT jint JNICALL
 Java_info_martinmarinov_usbxfer_IsoRequest_jni_1submit(JNIEnv *env, jclass type, jlong ptr, jint fd) {
@@ -92,38 +98,104 @@ Java_info_martinmarinov_usbxfer_IsoRequest_jni_1read(JNIEnv *env, jclass type, j
                                                     jbyteArray data_) {
     struct usbdevfs_urb * urb = (struct usbdevfs_urb *) ptr;
 
-    // Copy whole packet, will not check individual packet status for now
+    // Copy whole packet, the status is accounted for when reaping
     (*env)->SetByteArrayRegion(env, data_, 0, urb->actual_length, urb->buffer);
     return urb->actual_length;
 }
 
-JNIEXPORT void JNICALL
-Java_info_martinmarinov_usbxfer_IsoRequest_jni_1free_1urb(JNIEnv *env, jclass type, jlong ptr) {
+JNIEXPORT jobject JNICALL
+Java_info_martinmarinov_usbxfer_IsoRequest_jni_1get_1direct_1buffer(JNIEnv *env, jclass type, jlong ptr) {
     struct usbdevfs_urb * urb = (struct usbdevfs_urb *) ptr;
 
-    free(urb->buffer);
-    free(urb->usercontext);
-    free(urb);
+    // The returned buffer aliases the URB memory, it is only valid until the URB is freed
+    return (*env)->NewDirectByteBuffer(env, urb->buffer, urb->buffer_length);
 }
 
 JNIEXPORT jint JNICALL
-Java_info_martinmarinov_usbxfer_IsoRequest_jni_1get_1ready_1packet_1id(JNIEnv *env, jclass type, jint fd,
-                                                                      jboolean wait) {
-    struct usbdevfs_urb * urb = NULL;
+Java_info_martinmarinov_usbxfer_IsoRequest_jni_1reap_1batch(JNIEnv *env, jclass type, jint fd,
+                                                           jboolean wait, jintArray ids_,
+                                                           jintArray lengths_, jintArray statuses_,
+                                                           jlongArray timestamps_, jintArray frameErrors_) {
+    struct usbdevfs_urb * urb;
+    struct timespec now;
     isoreq_t * isor;
-
-    if (ioctl(fd, wait ? USBDEVFS_REAPURB : USBDEVFS_REAPURBNDELAY, &urb) < 0) {
-        if (errno == EAGAIN) {
-            // means try again
-            return -1;
+    jsize max = (*env)->GetArrayLength(env, ids_);
+    jint * ids = (*env)->GetIntArrayElements(env, ids_, NULL);
+    jint * lengths = (*env)->GetIntArrayElements(env, lengths_, NULL);
+    jint * statuses = (*env)->GetIntArrayElements(env, statuses_, NULL);
+    jlong * timestamps = (*env)->GetLongArrayElements(env, timestamps_, NULL);
+    jint * frameErrors = (*env)->GetIntArrayElements(env, frameErrors_, NULL);
+    int count = 0, errors;
+
+    while (count < max) {
+        urb = NULL;
+        // Only the first reap may block, the rest drain whatever has already completed
+        if (ioctl(fd, (wait && count == 0) ? USBDEVFS_REAPURB : USBDEVFS_REAPURBNDELAY, &urb) < 0) {
+            if (errno == EAGAIN) {
+                // nothing more is ready
+                break;
+            } else if (count > 0) {
+                // return what we have, the error will be reported on the next call
+                break;
+            } else {
+                // a signal is not an error, the caller tries again. Anything else stops the stream so it is only logged once.
+                if (errno != EINTR) __android_log_print(ANDROID_LOG_ERROR, TAG, "ioctl error %d text %s during reap batch", errno,
+                                    strerror(errno));
+                (*env)->ReleaseIntArrayElements(env, ids_, ids, JNI_ABORT);
+                (*env)->ReleaseIntArrayElements(env, lengths_, lengths, JNI_ABORT);
+                (*env)->ReleaseIntArrayElements(env, statuses_, statuses, JNI_ABORT);
+                (*env)->ReleaseLongArrayElements(env, timestamps_, timestamps, JNI_ABORT);
+                (*env)->ReleaseIntArrayElements(env, frameErrors_, frameErrors, JNI_ABORT);
+                return -errno;
+            }
+        }
+        if (urb == NULL) break;
+
+        // usbfs does not report when the URB completed, the time it was reaped is the closest we can get
+        clock_gettime(CLOCK_MONOTONIC, &now);
+
+        isor = (isoreq_t *) urb->usercontext;
+        ids[count] = isor->id;
+        if (isor->iso) {
+            // everyone reading the URB from now on sees only the compacted data
+            urb->actual_length = compact_iso_frames(urb, &errors);
+            lengths[count] = urb->actual_length;
+            frameErrors[count] = errors;
         } else {
-            __android_log_print(ANDROID_LOG_ERROR, TAG, "ioctl error %d text %s during get ready packet id", errno,
-                                strerror(errno));
-            return -errno;
+            lengths[count] = urb->actual_length;
+            frameErrors[count] = 0;
         }
+        statuses[count] = urb->status;
+        timestamps[count] = (jlong) now.tv_sec * 1000000000LL + now.tv_nsec;
+        count++;
     }
-    if (urb == NULL) return -1;
 
-    isor = (isoreq_t *) urb->usercontext;
-    return isor->id;
-}
\ No newline at end of file
+    (*env)->ReleaseIntArrayElements(env, ids_, ids, 0);
+    (*env)->ReleaseIntArrayElements(env, lengths_, lengths, 0);
+    (*env)->ReleaseIntArrayElements(env, statuses_, statuses, 0);
+    (*env)->ReleaseLongArrayElements(env, timestamps_, timestamps, 0);
+    (*env)->ReleaseIntArrayElements(env, frameErrors_, frameErrors, 0);
+    return count;
+}
+
+JNIEXPORT jint JNICALL
+Java_info_martinmarinov_usbxfer_IsoRequest_jni_1resubmit_1batch(JNIEnv *env, jclass type, jint fd,
+                                                               jlongArray ptrs_, jint count) {
+    int i;
+    struct usbdevfs_urb * urb;
+    jlong * ptrs = (*env)->GetLongArrayElements(env, ptrs_, NULL);
+
+    for (i = 0; i < count; i++) {
+        urb = (struct usbdevfs_urb *) ptrs[i];
+        reset_urb(urb);
+        if (ioctl(fd, USBDEVFS_SUBMITURB, urb)) {
+            __android_log_print(ANDROID_LOG_ERROR, TAG, "ioctl error %d text %s during resubmit batch", errno, strerror(errno));
+            // the URBs before this one are in flight, the caller has to know about them
+            if (i == 0) i = -errno;
+            break;
+        }
+    }
+
+    (*env)->ReleaseLongArrayElements(env, ptrs_, ptrs, JNI_ABORT);
+    return i;
+}
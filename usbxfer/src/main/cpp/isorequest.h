@@ -0,0 +1,14 @@
+#ifndef USBXFER_ISOREQUEST_H
+#define USBXFER_ISOREQUEST_H
+
+#include <stddef.h>
+
+typedef struct isoreq {
+    unsigned char endpointAddr;
+    int number_of_packets;
+    int id;
+    size_t packetSize;
+    int iso;
+} isoreq_t;
+
+#endif //USBXFER_ISOREQUEST_H
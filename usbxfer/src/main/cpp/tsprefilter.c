@@ -0,0 +1,267 @@
+#include <jni.h>
+#include <stdint.h>
+#include <string.h>
+#include <stdlib.h>
+#include <errno.h>
+#include <sys/socket.h>
+#include <sys/uio.h>
+#include <linux/usbdevice_fs.h>
+#include <android/log.h>
+
+#define TAG "JNI_TsPreFilter"
+
+#define TS_PACKET_SIZE 188
+#define TS_SYNC_BYTE 0x47
+
+#define COUNTER_PASSED 0
+#define COUNTER_FILTERED 1
+#define COUNTER_TEI 2
+#define COUNTER_SYNC_LOSS 3
+#define COUNTERS 4
+
+#define MAX_IOV 16
+
+typedef struct ts_prefilter {
+    uint32_t pids[8192 / 32];
+    unsigned char carry[TS_PACKET_SIZE];
+    int carry_len;
+    unsigned char * out;
+    int out_capacity;
+    jlong counters[COUNTERS];
+} ts_prefilter_t;
+
+static int emit(ts_prefilter_t * f, const unsigned char * packet, int o) {
+    int pid = ((packet[1] & 0x1F) << 8) | packet[2];
+
+    if (packet[1] & 0x80) f->counters[COUNTER_TEI]++;
+    if (f->pids[pid >> 5] & (1u << (pid & 31))) {
+        memcpy(f->out + o, packet, TS_PACKET_SIZE);
+        f->counters[COUNTER_PASSED]++;
+        return o + TS_PACKET_SIZE;
+    } else {
+        f->counters[COUNTER_FILTERED]++;
+        return o;
+    }
+}
+
+// Compacts the wanted packets of in into f->out, returns the number of bytes written
+static int filter(ts_prefilter_t * f, const unsigned char * in, int len) {
+    int p = 0, o = 0, need;
+    const unsigned char * sync;
+
+    if (f->carry_len != 0) {
+        need = TS_PACKET_SIZE - f->carry_len;
+        if (len < need) {
+            memcpy(f->carry + f->carry_len, in, (size_t) len);
+            f->carry_len += len;
+            return 0;
+        }
+        memcpy(f->carry + f->carry_len, in, (size_t) need);
+        o = emit(f, f->carry, o);
+        f->carry_len = 0;
+        p = need;
+    }
+
+    while (p < len) {
+        if (in[p] != TS_SYNC_BYTE) {
+            f->counters[COUNTER_SYNC_LOSS]++;
+            sync = memchr(in + p, TS_SYNC_BYTE, (size_t) (len - p));
+            if (sync == NULL) break;
+            p = (int) (sync - in);
+        }
+        if (len - p < TS_PACKET_SIZE) {
+            // the rest of the packet is in the next URB
+            memcpy(f->carry, in + p, (size_t) (len - p));
+            f->carry_len = len - p;
+            break;
+        }
+        o = emit(f, in + p, o);
+        p += TS_PACKET_SIZE;
+    }
+
+    return o;
+}
+
+// Writes all of the iovecs, returns the number of bytes written or -errno
+static int send_all(int fd, struct iovec * iov, int iovcnt) {
+    struct msghdr msg;
+    ssize_t written;
+    int total = 0;
+
+    while (iovcnt > 0) {
+        memset(&msg, 0, sizeof(msg));
+        msg.msg_iov = iov;
+        msg.msg_iovlen = (size_t) iovcnt;
+
+        // MSG_NOSIGNAL avoids SIGPIPE if the client goes away, pipes and files fall back to writev
+        written = sendmsg(fd, &msg, MSG_NOSIGNAL);
+        if (written < 0 && errno == ENOTSOCK) written = writev(fd, iov, iovcnt);
+        if (written < 0) {
+            if (errno == EINTR) continue;
+            __android_log_print(ANDROID_LOG_ERROR, TAG, "write error %d text %s", errno, strerror(errno));
+            return -errno;
+        }
+
+        total += (int) written;
+        while (iovcnt > 0 && (size_t) written >= iov->iov_len) {
+            written -= iov->iov_len;
+            iov++;
+            iovcnt--;
+        }
+        if (iovcnt > 0) {
+            iov->iov_base = (unsigned char *) iov->iov_base + written;
+            iov->iov_len -= written;
+        }
+    }
+
+    return total;
+}
+
+// Writes the synced packets of in to fd straight from the URB memory, returns bytes written or -errno
+static int pass_through(ts_prefilter_t * f, const unsigned char * in, int len, int fd) {
+    struct iovec iov[MAX_IOV];
+    int n = 0, p = 0, start, need, res, total = 0, tail = -1;
+    const unsigned char * sync;
+
+    if (f->carry_len != 0) {
+        need = TS_PACKET_SIZE - f->carry_len;
+        if (len < need) {
+            memcpy(f->carry + f->carry_len, in, (size_t) len);
+            f->carry_len += len;
+            return 0;
+        }
+        memcpy(f->carry + f->carry_len, in, (size_t) need);
+        if (f->carry[1] & 0x80) f->counters[COUNTER_TEI]++;
+        f->counters[COUNTER_PASSED]++;
+        iov[n].iov_base = f->carry;
+        iov[n++].iov_len = TS_PACKET_SIZE;
+        f->carry_len = 0;
+        p = need;
+    }
+
+    while (p < len) {
+        if (in[p] != TS_SYNC_BYTE) {
+            f->counters[COUNTER_SYNC_LOSS]++;
+            sync = memchr(in + p, TS_SYNC_BYTE, (size_t) (len - p));
+            if (sync == NULL) break;
+            p = (int) (sync - in);
+        }
+        if (len - p < TS_PACKET_SIZE) {
+            // the carry may still be queued for writing, keep the tail for later
+            tail = p;
+            break;
+        }
+
+        // extend the run for as long as the packets stay in sync
+        start = p;
+        do {
+            if (in[p + 1] & 0x80) f->counters[COUNTER_TEI]++;
+            f->counters[COUNTER_PASSED]++;
+            p += TS_PACKET_SIZE;
+        } while (len - p >= TS_PACKET_SIZE && in[p] == TS_SYNC_BYTE);
+
+        if (n == MAX_IOV) {
+            res = send_all(fd, iov, n);
+            if (res < 0) return res;
+            total += res;
+            n = 0;
+        }
+        iov[n].iov_base = (void *) (in + start);
+        iov[n++].iov_len = (size_t) (p - start);
+    }
+
+    if (n != 0) {
+        res = send_all(fd, iov, n);
+        if (res < 0) return res;
+        total += res;
+    }
+
+    if (tail >= 0) {
+        memcpy(f->carry, in + tail, (size_t) (len - tail));
+        f->carry_len = len - tail;
+    }
+
+    return total;
+}
+
+JNIEXPORT jlong JNICALL
+Java_info_martinmarinov_usbxfer_TsPreFilter_jni_1create(JNIEnv *env, jclass type) {
+    return (jlong) calloc(1, sizeof(ts_prefilter_t));
+}
+
+JNIEXPORT void JNICALL
+Java_info_martinmarinov_usbxfer_TsPreFilter_jni_1free(JNIEnv *env, jclass type, jlong ptr) {
+    ts_prefilter_t * f = (ts_prefilter_t *) ptr;
+
+    free(f->out);
+    free(f);
+}
+
+JNIEXPORT jobject JNICALL
+Java_info_martinmarinov_usbxfer_TsPreFilter_jni_1ensure_1capacity(JNIEnv *env, jclass type, jlong ptr, jint length) {
+    ts_prefilter_t * f = (ts_prefilter_t *) ptr;
+    // a packet stitched from the previous URB may come on top of the whole URB
+    int capacity = length + TS_PACKET_SIZE;
+
+    if (f->out_capacity < capacity) {
+        free(f->out);
+        f->out = (unsigned char *) malloc((size_t) capacity);
+        if (f->out == NULL) {
+            __android_log_print(ANDROID_LOG_ERROR, TAG, "Cannot allocate %d bytes", capacity);
+            f->out_capacity = 0;
+            return NULL;
+        }
+        f->out_capacity = capacity;
+    }
+    return (*env)->NewDirectByteBuffer(env, f->out, f->out_capacity);
+}
+
+JNIEXPORT void JNICALL
+Java_info_martinmarinov_usbxfer_TsPreFilter_jni_1set_1pids(JNIEnv *env, jclass type, jlong ptr, jintArray bitmap_) {
+    ts_prefilter_t * f = (ts_prefilter_t *) ptr;
+
+    (*env)->GetIntArrayRegion(env, bitmap_, 0, 8192 / 32, (jint *) f->pids);
+}
+
+JNIEXPORT void JNICALL
+Java_info_martinmarinov_usbxfer_TsPreFilter_jni_1reset(JNIEnv *env, jclass type, jlong ptr) {
+    ((ts_prefilter_t *) ptr)->carry_len = 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_info_martinmarinov_usbxfer_TsPreFilter_jni_1filter(JNIEnv *env, jclass type, jlong ptr, jlong urbPtr, jint length) {
+    ts_prefilter_t * f = (ts_prefilter_t *) ptr;
+    struct usbdevfs_urb * urb = (struct usbdevfs_urb *) urbPtr;
+
+    return filter(f, (const unsigned char *) urb->buffer, length);
+}
+
+JNIEXPORT jint JNICALL
+Java_info_martinmarinov_usbxfer_TsPreFilter_jni_1filter_1read(JNIEnv *env, jclass type, jlong ptr, jlong urbPtr, jint length, jbyteArray data_) {
+    ts_prefilter_t * f = (ts_prefilter_t *) ptr;
+    struct usbdevfs_urb * urb = (struct usbdevfs_urb *) urbPtr;
+    int count = filter(f, (const unsigned char *) urb->buffer, length);
+
+    (*env)->SetByteArrayRegion(env, data_, 0, count, (const jbyte *) f->out);
+    return count;
+}
+
+JNIEXPORT jint JNICALL
+Java_info_martinmarinov_usbxfer_TsPreFilter_jni_1write_1fd(JNIEnv *env, jclass type, jlong ptr, jlong urbPtr, jint length, jint fd, jboolean filtering) {
+    ts_prefilter_t * f = (ts_prefilter_t *) ptr;
+    struct usbdevfs_urb * urb = (struct usbdevfs_urb *) urbPtr;
+    struct iovec iov;
+
+    if (!filtering) return pass_through(f, (const unsigned char *) urb->buffer, length, fd);
+
+    iov.iov_base = f->out;
+    iov.iov_len = (size_t) filter(f, (const unsigned char *) urb->buffer, length);
+    return iov.iov_len == 0 ? 0 : send_all(fd, &iov, 1);
+}
+
+JNIEXPORT void JNICALL
+Java_info_martinmarinov_usbxfer_TsPreFilter_jni_1get_1counters(JNIEnv *env, jclass type, jlong ptr, jlongArray counters_) {
+    ts_prefilter_t * f = (ts_prefilter_t *) ptr;
+
+    (*env)->SetLongArrayRegion(env, counters_, 0, COUNTERS, f->counters);
+}
@@ -0,0 +1,100 @@
+#include <jni.h>
+#include <stdio.h>
+#include <string.h>
+#include <stdlib.h>
+#include <sys/mman.h>
+#include <errno.h>
+#include <linux/usbdevice_fs.h>
+#include <android/log.h>
+
+#include "isorequest.h"
+
+#define TAG "JNI_UrbArena"
+
+// Keep every URB header aligned no matter how many iso descriptors precede it
+#define ALIGN(x) (((x) + 15) & ~((size_t) 15))
+
+// All URB headers, iso descriptors, contexts and (unless mmapped) buffers live in a single allocation
+typedef struct urb_arena {
+    int nrequests;
+    size_t slot_size;
+    size_t buffers_size;
+    unsigned char * slots;
+    unsigned char * buffers;
+    int mmapped;
+} urb_arena_t;
+
+static struct usbdevfs_urb * arena_urb(urb_arena_t * arena, int i) {
+    return (struct usbdevfs_urb *) (arena->slots + i * arena->slot_size + ALIGN(sizeof(isoreq_t)));
+}
+
+JNIEXPORT jlong JNICALL
+Java_info_martinmarinov_usbxfer_UrbArena_jni_1allocate(JNIEnv *env, jclass type, jint fd, jint endpointAddr,
+                                                      jint nrequests, jint maxPackets, jint packetSize,
+                                                      jboolean iso, jboolean tryMmap) {
+    int i;
+    size_t request_size = (size_t) packetSize * maxPackets;
+    size_t buffers_size = request_size * nrequests;
+    size_t slot_size = ALIGN(sizeof(isoreq_t)) + ALIGN(sizeof(struct usbdevfs_urb) + maxPackets * sizeof(struct usbdevfs_iso_packet_desc));
+    size_t header_size = ALIGN(sizeof(urb_arena_t));
+    void * buffers = MAP_FAILED;
+    unsigned char * mem;
+    urb_arena_t * arena;
+
+    if (tryMmap) {
+        // usbfs can hand out DMA capable memory so the kernel does not need to copy data (Linux 4.6+)
+        buffers = mmap(NULL, buffers_size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+        if (buffers == MAP_FAILED) {
+            __android_log_print(ANDROID_LOG_WARN, TAG, "usbfs mmap error %d text %s, falling back to malloc", errno, strerror(errno));
+        }
+    }
+
+    mem = (unsigned char *) malloc(header_size + nrequests * slot_size + (buffers == MAP_FAILED ? buffers_size : 0));
+    if (mem == NULL) {
+        if (buffers != MAP_FAILED) munmap(buffers, buffers_size);
+        return 0;
+    }
+
+    arena = (urb_arena_t *) mem;
+    arena->nrequests = nrequests;
+    arena->slot_size = slot_size;
+    arena->buffers_size = buffers_size;
+    arena->slots = mem + header_size;
+    arena->mmapped = buffers != MAP_FAILED;
+    arena->buffers = arena->mmapped ? (unsigned char *) buffers : arena->slots + nrequests * slot_size;
+
+    for (i = 0; i < nrequests; i++) {
+        isoreq_t * isor = (isoreq_t *) (arena->slots + i * slot_size);
+        struct usbdevfs_urb * urb = arena_urb(arena, i);
+
+        isor->id = i;
+        isor->endpointAddr = (unsigned char) endpointAddr;
+        isor->number_of_packets = maxPackets;
+        isor->packetSize = (size_t) packetSize;
+        isor->iso = iso;
+
+        urb->usercontext = isor;
+        urb->buffer_length = (int) request_size;
+        urb->buffer = arena->buffers + i * request_size;
+    }
+
+    return (jlong) arena;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_info_martinmarinov_usbxfer_UrbArena_jni_1is_1mmapped(JNIEnv *env, jclass type, jlong ptr) {
+    return (jboolean) ((urb_arena_t *) ptr)->mmapped;
+}
+
+JNIEXPORT jlong JNICALL
+Java_info_martinmarinov_usbxfer_UrbArena_jni_1get_1urb(JNIEnv *env, jclass type, jlong ptr, jint i) {
+    return (jlong) arena_urb((urb_arena_t *) ptr, i);
+}
+
+JNIEXPORT void JNICALL
+Java_info_martinmarinov_usbxfer_UrbArena_jni_1free(JNIEnv *env, jclass type, jlong ptr) {
+    urb_arena_t * arena = (urb_arena_t *) ptr;
+
+    if (arena->mmapped) munmap(arena->buffers, arena->buffers_size);
+    free(arena);
+}
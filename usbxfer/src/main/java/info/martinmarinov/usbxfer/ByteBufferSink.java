@@ -0,0 +1,36 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package info.martinmarinov.usbxfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ByteSink} that can also consume data straight from a (possibly direct) {@link ByteBuffer}.
+ * Sources that have the data in native memory use this to avoid copying it into the Java heap.
+ */
+public interface ByteBufferSink extends ByteSink {
+    /**
+     * Consumes the data between the position and the limit of the buffer.
+     * The buffer is owned by the source and is only valid for the duration of the call.
+     */
+    void consume(ByteBuffer data) throws IOException;
+}
@@ -26,4 +26,10 @@ import java.io.IOException;
 public interface ByteSource extends Closeable {
     void open() throws IOException;
     void readNext(ByteSink sink) throws IOException, InterruptedException;
+
+    /**
+     * Wakes up a thread that is blocked in #readNext waiting for data. Safe to call from any thread.
+     * Once cancelled the source will not produce any more data and should be closed.
+     */
+    void cancel() throws IOException;
 }
@@ -20,18 +20,21 @@
 
 package info.martinmarinov.usbxfer;
 
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
-
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 class IsoRequest {
     private final long urbPtr;
     private final int fd;
 
-    IsoRequest(UsbDeviceConnection usbDeviceConnection, UsbEndpoint usbEndpoint, int id, int maxPackets, int packetSize) {
-        this.fd = usbDeviceConnection.getFileDescriptor();
-        urbPtr = jni_allocate_urb(usbEndpoint.getAddress(), id, maxPackets, packetSize);
+    private ByteBuffer directBuffer;
+
+    /**
+     * @param urbPtr URB from an {@link UrbArena}, the memory is owned by the arena
+     */
+    IsoRequest(int fd, long urbPtr) {
+        this.fd = fd;
+        this.urbPtr = urbPtr;
         jni_reset_urb(urbPtr);
     }
 
@@ -51,21 +54,51 @@ class IsoRequest {
         return jni_read(urbPtr, data);
     }
 
-    static int getReadyRequestId(UsbDeviceConnection usbDeviceConnection, boolean wait) {
-        return jni_get_ready_packet_id(usbDeviceConnection.getFileDescriptor(), wait);
+    /**
+     * Exposes the native URB buffer without copying it into the Java heap.
+     * The returned buffer is only valid until the request is reset and submitted again.
+     * @param length the actual length of the received data, as returned by #reapBatch
+     * @return a direct buffer with position 0 and limit set to the length of the received data
+     */
+    ByteBuffer readDirect(int length) {
+        if (directBuffer == null) directBuffer = jni_get_direct_buffer(urbPtr);
+        directBuffer.clear();
+        directBuffer.limit(length);
+        return directBuffer;
+    }
+
+    long getUrbPtr() {
+        return urbPtr;
+    }
+
+    /**
+     * Reaps all requests that have completed so far with a single JNI call
+     * @param wait whether to block until at least one request has completed
+     * @param ids will be filled with the ids of the completed requests
+     * @param lengths will be filled with the actual length of the data of each completed request
+     * @param statuses will be filled with the status of each completed request, 0 or a negative errno
+     * @param timestampsNs will be filled with the CLOCK_MONOTONIC time at which each request was reaped
+     * @param frameErrors will be filled with the number of iso frames dropped due to errors, 0 for bulk requests.
+     *                    The good frames of iso requests are compacted, the lengths are of the compacted data.
+     * @return the number of completed requests or a negative value in case of error
+     */
+    static int reapBatch(int fd, boolean wait, int[] ids, int[] lengths, int[] statuses, long[] timestampsNs, int[] frameErrors) {
+        return jni_reap_batch(fd, wait, ids, lengths, statuses, timestampsNs, frameErrors);
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        jni_free_urb(urbPtr);
+    /**
+     * Resets and submits the first count URBs with a single JNI call, stopping at the first one that fails
+     * @return the number of URBs submitted, less than count if one failed, or a negative errno if the first one failed
+     */
+    static int resubmitBatch(int fd, long[] urbPtrs, int count) {
+        return jni_resubmit_batch(fd, urbPtrs, count);
     }
 
-    private static native long jni_allocate_urb(int endpointAddr, int id, int maxPackets, int packetSize);
     private static native void jni_reset_urb(long ptr);
-    private static native void jni_free_urb(long ptr);
     private static native int jni_submit(long ptr, int fd);
     private static native int jni_cancel(long ptr, int fd);
     private static native int jni_read(long ptr, byte[] data);
-    private static native int jni_get_ready_packet_id(int fd, boolean wait);
+    private static native ByteBuffer jni_get_direct_buffer(long ptr);
+    private static native int jni_reap_batch(int fd, boolean wait, int[] ids, int[] lengths, int[] statuses, long[] timestampsNs, int[] frameErrors);
+    private static native int jni_resubmit_batch(int fd, long[] urbPtrs, int count);
 }
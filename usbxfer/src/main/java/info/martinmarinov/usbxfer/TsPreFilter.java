@@ -0,0 +1,181 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.usbxfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Optional native stage that drops unwanted TS packets before they are copied out of the URBs.
+ * Only the packets with wanted PIDs are compacted into the output so the Java side sees a
+ * fraction of the data when just a few PIDs are needed.
+ *
+ * The PIDs can be changed from any thread, the filtering itself happens on the reading thread.
+ */
+public class TsPreFilter implements Closeable {
+    private final static int COUNTER_PASSED = 0;
+    private final static int COUNTER_FILTERED = 1;
+    private final static int COUNTER_TEI = 2;
+    private final static int COUNTER_SYNC_LOSS = 3;
+
+    static {
+        // Makes sure the native library is loaded
+        if (!UsbHiSpeedBulk.IS_PLATFORM_SUPPORTED) throw new UnsupportedOperationException("Native library cannot be loaded");
+    }
+
+    private final long[] counters = new long[4];
+    private final AtomicReference<int[]> pendingPids = new AtomicReference<>();
+    private volatile boolean passAll = true;
+    private boolean filtering = false;
+    private ByteBuffer output;
+    private long ptr;
+
+    public TsPreFilter() {
+        ptr = jni_create();
+    }
+
+    /**
+     * Only let packets with these PIDs through
+     */
+    public void setPids(int... pids) {
+        int[] bitmap = new int[0x2000 / 32];
+        for (int pid : pids) {
+            bitmap[pid >> 5] |= 1 << (pid & 31);
+        }
+        pendingPids.set(bitmap);
+        passAll = false;
+    }
+
+    /**
+     * Let all packets through, the URBs are handed over as they are
+     */
+    public void passAll() {
+        passAll = true;
+    }
+
+    public long getPassedPackets() {
+        return counter(COUNTER_PASSED);
+    }
+
+    public long getFilteredPackets() {
+        return counter(COUNTER_FILTERED);
+    }
+
+    /**
+     * @return number of packets with the transport error indicator set, regardless whether they were filtered
+     */
+    public long getTeiPackets() {
+        return counter(COUNTER_TEI);
+    }
+
+    /**
+     * @return number of times the stream had to be searched for the next sync byte
+     */
+    public long getSyncLosses() {
+        return counter(COUNTER_SYNC_LOSS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (ptr == 0) return;
+        jni_get_counters(ptr, counters);
+        jni_free(ptr);
+        ptr = 0;
+        output = null;
+    }
+
+    @Override
+    public String toString() {
+        return "passed " + getPassedPackets() + ", filtered " + getFilteredPackets() +
+                ", TEI " + getTeiPackets() + ", sync losses " + getSyncLosses();
+    }
+
+    // Called from the reading thread only
+
+    void ensureCapacity(int requestSize) throws IOException {
+        output = jni_ensure_capacity(ptr, requestSize);
+        if (output == null) throw new IOException("Cannot allocate pre-filter output");
+    }
+
+    /**
+     * Applies any pending changes of the PIDs
+     * @return whether the data needs to be filtered or can be passed as it is
+     */
+    boolean prepare() {
+        int[] bitmap = pendingPids.getAndSet(null);
+        if (bitmap != null) jni_set_pids(ptr, bitmap);
+
+        boolean shouldFilter = !passAll;
+        if (shouldFilter != filtering) {
+            // A partial packet from before the switch does not belong to the data we'll see next
+            jni_reset(ptr);
+            filtering = shouldFilter;
+        }
+        return shouldFilter;
+    }
+
+    /**
+     * Filters a completed URB into the given array
+     * @return number of bytes written, always a multiple of the TS packet size
+     */
+    int filterRead(long urbPtr, int length, byte[] data) {
+        return jni_filter_read(ptr, urbPtr, length, data);
+    }
+
+    /**
+     * Filters a completed URB without copying it to the Java heap
+     * @return a direct buffer over the native output, valid until the next call
+     */
+    ByteBuffer filterDirect(long urbPtr, int length) {
+        int count = jni_filter(ptr, urbPtr, length);
+        output.clear();
+        output.limit(count);
+        return output;
+    }
+
+    /**
+     * Writes the packets of a completed URB to a file descriptor without going through Java.
+     * Unless filtering, the data is written straight from the URB memory after checking it is in sync.
+     * @return number of bytes written
+     * @throws IOException if writing fails, e.g. the other end was closed
+     */
+    int writeTo(long urbPtr, int length, int fd, boolean filtering) throws IOException {
+        int res = jni_write_fd(ptr, urbPtr, length, fd, filtering);
+        if (res < 0) throw new IOException("write returned " + res);
+        return res;
+    }
+
+    private synchronized long counter(int id) {
+        if (ptr != 0) jni_get_counters(ptr, counters);
+        return counters[id];
+    }
+
+    private static native long jni_create();
+    private static native void jni_free(long ptr);
+    private static native ByteBuffer jni_ensure_capacity(long ptr, int length);
+    private static native void jni_set_pids(long ptr, int[] bitmap);
+    private static native void jni_reset(long ptr);
+    private static native int jni_filter(long ptr, long urbPtr, int length);
+    private static native int jni_filter_read(long ptr, long urbPtr, int length, byte[] data);
+    private static native int jni_write_fd(long ptr, long urbPtr, int length, int fd, boolean filtering);
+    private static native void jni_get_counters(long ptr, long[] counters);
+}
@@ -0,0 +1,136 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.usbxfer;
+
+import java.io.IOException;
+
+/**
+ * A single native allocation holding the URB headers, iso descriptors and buffers of all requests
+ * of a {@link UsbHiSpeedBulk}. It is freed explicitly rather than waiting for finalizers.
+ *
+ * The last released arena is kept idle so restarting a stream with the same geometry, e.g. when
+ * zapping, does not need to allocate again.
+ */
+class UrbArena {
+    private final static Object POOL_LOCK = new Object();
+    private static UrbArena idle;
+    private static long leaked;
+
+    private final int fd, endpointAddr, nrequests, maxPackets, packetSize;
+    private final boolean iso, mmapped;
+    private long ptr;
+
+    private UrbArena(long ptr, int fd, int endpointAddr, int nrequests, int maxPackets, int packetSize, boolean iso) {
+        this.ptr = ptr;
+        this.fd = fd;
+        this.endpointAddr = endpointAddr;
+        this.nrequests = nrequests;
+        this.maxPackets = maxPackets;
+        this.packetSize = packetSize;
+        this.iso = iso;
+        this.mmapped = jni_is_mmapped(ptr);
+    }
+
+    /**
+     * Reuses the idle arena if it matches or allocates a new one
+     * @param iso whether the URBs are for an isochronous endpoint, otherwise they are bulk
+     * @param tryMmap whether to carve the buffers from usbfs mmap memory, falls back to malloc if the kernel does not support it
+     */
+    static UrbArena obtain(int fd, int endpointAddr, int nrequests, int maxPackets, int packetSize, boolean iso, boolean tryMmap) throws IOException {
+        UrbArena stale;
+        synchronized (POOL_LOCK) {
+            stale = idle;
+            idle = null;
+        }
+        if (stale != null) {
+            if (stale.fd == fd && stale.endpointAddr == endpointAddr && stale.nrequests == nrequests
+                    && stale.maxPackets == maxPackets && stale.packetSize == packetSize && stale.iso == iso && (tryMmap || !stale.mmapped)) {
+                return stale;
+            }
+            stale.free();
+        }
+
+        long ptr = jni_allocate(fd, endpointAddr, nrequests, maxPackets, packetSize, iso, tryMmap);
+        if (ptr == 0) throw new IOException("Cannot allocate memory for USB requests");
+        return new UrbArena(ptr, fd, endpointAddr, nrequests, maxPackets, packetSize, iso);
+    }
+
+    /**
+     * Frees the idle arena, if any. Call when the device is closed so its usbfs memory is not held.
+     */
+    static void releaseIdle() {
+        UrbArena stale;
+        synchronized (POOL_LOCK) {
+            stale = idle;
+            idle = null;
+        }
+        if (stale != null) stale.free();
+    }
+
+    /**
+     * @return number of arenas that had to be abandoned because the kernel did not give back all of their URBs
+     */
+    static long getLeakedCount() {
+        synchronized (POOL_LOCK) {
+            return leaked;
+        }
+    }
+
+    long getUrbPtr(int i) {
+        return jni_get_urb(ptr, i);
+    }
+
+    boolean isMmapped() {
+        return mmapped;
+    }
+
+    /**
+     * Gives back the arena for reuse. All of its URBs must have been reaped.
+     */
+    void release() {
+        UrbArena stale;
+        synchronized (POOL_LOCK) {
+            stale = idle;
+            idle = this;
+        }
+        if (stale != null) stale.free();
+    }
+
+    /**
+     * Abandons the arena without freeing it since the kernel may still write into some of its URBs.
+     */
+    void leak() {
+        ptr = 0;
+        synchronized (POOL_LOCK) {
+            leaked++;
+        }
+    }
+
+    private void free() {
+        if (ptr == 0) return;
+        jni_free(ptr);
+        ptr = 0;
+    }
+
+    private static native long jni_allocate(int fd, int endpointAddr, int nrequests, int maxPackets, int packetSize, boolean iso, boolean tryMmap);
+    private static native boolean jni_is_mmapped(long ptr);
+    private static native long jni_get_urb(long ptr, int i);
+    private static native void jni_free(long ptr);
+}
@@ -0,0 +1,116 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package info.martinmarinov.usbxfer;
+
+/**
+ * Decides how many requests should be in flight based on what is observed at each reap.
+ *
+ * If all requests in flight have completed by the time they are reaped, the host controller
+ * had nothing to put data into and probably dropped some, so the number of requests is increased.
+ * If the number of completed requests never gets close to the number in flight, there are more
+ * requests than needed and the number is slowly decreased.
+ *
+ * Decisions are taken often during the first seconds of streaming and less often afterwards.
+ */
+class UrbAutoTuner {
+    private final static long WARMUP_NS = 5_000_000_000L;
+    private final static long WARMUP_WINDOW_NS = 250_000_000L;
+    private final static long WINDOW_NS = 2_000_000_000L;
+    private final static int MIN_IN_FLIGHT = 4;
+
+    private final UrbProfile profile;
+    private final int minInFlight, maxInFlight;
+
+    private int target;
+    private long startNs = -1, windowStartNs, lastReapNs = -1;
+    private int windowMaxDepth, windowOverflows;
+    private long overflows;
+    private double meanInterArrivalNs;
+
+    UrbAutoTuner(UrbProfile profile, int maxInFlight) {
+        this.profile = profile;
+        this.maxInFlight = maxInFlight;
+        this.minInFlight = Math.min(MIN_IN_FLIGHT, maxInFlight);
+        this.target = maxInFlight;
+    }
+
+    /**
+     * @param nowNs monotonic timestamp of the reap in nanoseconds
+     * @param completed number of requests that were ready
+     * @param inFlight number of requests that were in flight before the reap
+     */
+    void onReap(long nowNs, int completed, int inFlight) {
+        if (completed <= 0) return;
+
+        if (lastReapNs >= 0) {
+            double interArrivalNs = (nowNs - lastReapNs) / (double) completed;
+            meanInterArrivalNs = meanInterArrivalNs == 0.0 ? interArrivalNs : meanInterArrivalNs * 0.9 + interArrivalNs * 0.1;
+        }
+        lastReapNs = nowNs;
+
+        if (completed >= inFlight) {
+            overflows++;
+            windowOverflows++;
+        }
+        if (completed > windowMaxDepth) windowMaxDepth = completed;
+
+        if (startNs < 0) {
+            startNs = windowStartNs = nowNs;
+            return;
+        }
+
+        long window = nowNs - startNs < WARMUP_NS ? WARMUP_WINDOW_NS : WINDOW_NS;
+        if (nowNs - windowStartNs >= window) {
+            adjust();
+            windowStartNs = nowNs;
+            windowMaxDepth = 0;
+            windowOverflows = 0;
+        }
+    }
+
+    private void adjust() {
+        if (profile == UrbProfile.MAX_THROUGHPUT) return;
+
+        if (windowOverflows > 0) {
+            target = Math.min(maxInFlight, target + Math.max(1, target / 2));
+        } else if (windowMaxDepth * 2 < target) {
+            target = Math.max(minInFlight, target - Math.max(1, target / 8));
+        }
+    }
+
+    int getTargetInFlight() {
+        return target;
+    }
+
+    /**
+     * @return number of reaps at which all requests in flight had already completed
+     */
+    long getOverflows() {
+        return overflows;
+    }
+
+    /**
+     * @return smoothed time between two request completions in nanoseconds, 0 if unknown
+     */
+    double getMeanInterArrivalNs() {
+        return meanInterArrivalNs;
+    }
+}
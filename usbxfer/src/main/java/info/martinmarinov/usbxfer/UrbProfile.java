@@ -0,0 +1,45 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package info.martinmarinov.usbxfer;
+
+/**
+ * Determines how many USB requests are kept in flight and how big they are
+ */
+public enum UrbProfile {
+    /**
+     * Requests are half the size the driver asks for so data reaches the consumer sooner.
+     * Twice as many are allocated to keep the same amount of buffering and the number
+     * in flight is tuned like in {@link #AUTO}.
+     */
+    LOW_LATENCY,
+
+    /**
+     * All requests the driver asks for are always in flight. Uses the most memory
+     * but gives the host controller the most headroom.
+     */
+    MAX_THROUGHPUT,
+
+    /**
+     * Starts with all requests in flight and adjusts the number based on the measured
+     * completion rate and queue depth of the host controller.
+     */
+    AUTO
+}
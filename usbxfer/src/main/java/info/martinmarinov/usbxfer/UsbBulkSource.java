@@ -24,31 +24,67 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class UsbBulkSource implements ByteSource {
     private final static int INITIAL_DELAY_BEFORE_BACKOFF = 1_000;
     private final static int MAX_BACKOFF = 10;
 
+    public enum ReapMode {
+        /** Poll for completed requests and sleep with a backoff when there are none */
+        POLLING,
+        /** Block the reading thread in the kernel until a request completes. Use #cancel to wake it up. */
+        BLOCKING
+    }
+
     private final UsbDeviceConnection usbDeviceConnection;
     private final UsbEndpoint usbEndpoint;
     private final AlternateUsbInterface usbInterface;
     private final int numRequests;
     private final int numPacketsPerReq;
+    private final ReapMode reapMode;
+    private final UrbProfile urbProfile;
 
-    private UsbHiSpeedBulk usbHiSpeedBulk;
+    private volatile UsbHiSpeedBulk usbHiSpeedBulk;
+    private TsPreFilter preFilter;
+    private UsbTransferStats transferStats;
     private int backoff = -INITIAL_DELAY_BEFORE_BACKOFF;
 
     public UsbBulkSource(UsbDeviceConnection usbDeviceConnection, UsbEndpoint usbEndpoint, AlternateUsbInterface usbInterface, int numRequests, int numPacketsPerReq) {
+        this(usbDeviceConnection, usbEndpoint, usbInterface, numRequests, numPacketsPerReq, ReapMode.POLLING, UrbProfile.MAX_THROUGHPUT);
+    }
+
+    public UsbBulkSource(UsbDeviceConnection usbDeviceConnection, UsbEndpoint usbEndpoint, AlternateUsbInterface usbInterface, int numRequests, int numPacketsPerReq, ReapMode reapMode, UrbProfile urbProfile) {
         this.usbDeviceConnection = usbDeviceConnection;
         this.usbEndpoint = usbEndpoint;
         this.usbInterface = usbInterface;
         this.numRequests = numRequests;
         this.numPacketsPerReq = numPacketsPerReq;
+        this.reapMode = reapMode;
+        this.urbProfile = urbProfile;
+    }
+
+    /**
+     * Drop unwanted packets natively before they reach the sink. Must be called before #open.
+     */
+    public void setPreFilter(TsPreFilter preFilter) {
+        this.preFilter = preFilter;
+    }
+
+    /**
+     * Collect the USB transfer statistics into the given instance. Must be called before #open.
+     */
+    public void setTransferStats(UsbTransferStats transferStats) {
+        this.transferStats = transferStats;
     }
 
     @Override
     public void open() throws IOException {
-        usbHiSpeedBulk = new UsbHiSpeedBulk(usbDeviceConnection, usbEndpoint, numRequests, numPacketsPerReq);
+        // Some devices only stream over high bandwidth isochronous alternate settings
+        UsbHiSpeedBulk.TransferType transferType = UsbHiSpeedBulk.TransferType.of(usbEndpoint);
+        usbHiSpeedBulk = new UsbHiSpeedBulk(usbDeviceConnection, usbEndpoint, numRequests, numPacketsPerReq, urbProfile, transferType);
+        usbHiSpeedBulk.setPreFilter(preFilter);
+        if (transferStats != null) usbHiSpeedBulk.setTransferStats(transferStats);
 
         usbHiSpeedBulk.setInterface(usbInterface);
         usbDeviceConnection.claimInterface(usbInterface.getUsbInterface(), true);
@@ -57,8 +93,26 @@ public class UsbBulkSource implements ByteSource {
 
     @Override
     public void readNext(ByteSink sink) throws IOException, InterruptedException {
-        UsbHiSpeedBulk.Buffer read = usbHiSpeedBulk.read(false);
-        if (read == null) {
+        boolean wait = reapMode == ReapMode.BLOCKING;
+        boolean hasData;
+        if (sink instanceof FdSink) {
+            // Native code writes the data to the sink directly
+            hasData = usbHiSpeedBulk.transferTo(wait, ((FdSink) sink).getFd()) >= 0;
+        } else if (sink instanceof ByteBufferSink) {
+            // Let the sink parse the URB memory in place
+            ByteBuffer read = usbHiSpeedBulk.readDirect(wait);
+            hasData = read != null;
+            if (hasData) ((ByteBufferSink) sink).consume(read);
+        } else {
+            UsbHiSpeedBulk.Buffer read = usbHiSpeedBulk.read(wait);
+            hasData = read != null;
+            if (hasData) sink.consume(read.getData(), read.getLength());
+        }
+
+        if (wait) {
+            // No need to back off, the kernel only wakes us up when there is something to do
+            if (!hasData && usbHiSpeedBulk.isCancelled()) throw new InterruptedException();
+        } else if (!hasData) {
             backoff++;
             if (backoff > 0) {
                 Thread.sleep(backoff);
@@ -70,10 +124,15 @@ public class UsbBulkSource implements ByteSource {
             }
         } else {
             backoff = -INITIAL_DELAY_BEFORE_BACKOFF;
-            sink.consume(read.getData(), read.getLength());
         }
     }
 
+    @Override
+    public void cancel() throws IOException {
+        UsbHiSpeedBulk bulk = usbHiSpeedBulk;
+        if (bulk != null) bulk.cancel();
+    }
+
     @Override
     public void close() throws IOException {
         usbHiSpeedBulk.stop();
@@ -20,10 +20,12 @@
 
 package info.martinmarinov.usbxfer;
 
+import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,11 +36,38 @@ import java.util.List;
  *
  * Inspired by http://www.source-code.biz/snippets/java/UsbIso
  *
- * This is not thread safe! Call only from one thread.
+ * Despite the name, isochronous endpoints are supported too, see {@link TransferType}.
+ *
+ * This is not thread safe! Call only from one thread. The only exception is #cancel which can be
+ * used to wake up a thread blocked in #read or #readDirect.
  */
 
 public class UsbHiSpeedBulk {
     public final static boolean IS_PLATFORM_SUPPORTED;
+    private final static int EINTR = 4;
+    private final static int EAGAIN = 11;
+    private final static int ENODEV = 19;
+    private final static int TS_PACKET_SIZE = 188;
+    // usbfs refuses iso URBs with more packets than that
+    private final static int MAX_ISO_PACKETS = 128;
+
+    public enum TransferType {
+        BULK,
+        /** Each packet is a (micro)frame, the good ones are compacted into contiguous data */
+        ISOCHRONOUS;
+
+        public static TransferType of(UsbEndpoint usbEndpoint) {
+            return usbEndpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_ISOC ? ISOCHRONOUS : BULK;
+        }
+    }
+    private final static long STOP_REAP_TIMEOUT_NS = 500_000_000L;
+
+    public enum AllocationStrategy {
+        /** URB buffers are carved from a usbfs mmap region so the kernel transfers straight into them */
+        USBFS_MMAP,
+        /** URB buffers are allocated with malloc and the kernel copies the data into them */
+        MALLOC
+    }
 
     static {
         boolean isPlatformSupported = false;
@@ -52,21 +81,83 @@ public class UsbHiSpeedBulk {
     }
 
     private final int fileDescriptor;
-    private final UsbDeviceConnection usbDeviceConnection;
     private final List<IsoRequest> requests;
     private final int nrequests, packetsPerRequests, packetSize;
     private final UsbEndpoint usbEndpoint;
     private final Buffer buffer;
 
+    // Completed requests are reaped and resubmitted in batches to reduce the number of JNI calls
+    private final int[] readyIds;
+    private final int[] readyLengths;
+    private final int[] readyStatuses;
+    private final long[] readyTimestamps;
+    private final int[] readyFrameErrors;
+    private final long[] doneUrbPtrs;
+    private int readyCount, readyPos, doneCount;
+
+    // Requests that are allocated but the tuner decided to keep out of flight
+    private final long[] parkedUrbPtrs;
+    private int parkedCount, inFlight;
+    private final UrbProfile profile;
+    private final boolean iso;
+    private UrbAutoTuner tuner;
+
+    private AllocationStrategy preferredAllocationStrategy = AllocationStrategy.USBFS_MMAP;
+    private AllocationStrategy allocationStrategy;
+    private UrbArena arena;
+    private TsPreFilter preFilter;
+    private TsPreFilter passThroughState;
+    private UsbTransferStats transferStats = new UsbTransferStats();
+
+    private final Object cancelLock = new Object();
+    private volatile boolean cancelled;
+
+    private long jniTransitions;
+    private long bytesTransferred;
+
     public UsbHiSpeedBulk(UsbDeviceConnection usbDeviceConnection, UsbEndpoint usbEndpoint, int nrequests, int packetsPerRequests) {
-        this.usbDeviceConnection = usbDeviceConnection;
+        this(usbDeviceConnection, usbEndpoint, nrequests, packetsPerRequests, UrbProfile.MAX_THROUGHPUT);
+    }
+
+    /**
+     * @param nrequests maximum number of requests to allocate
+     * @param packetsPerRequests size of each request in number of max size packets of the endpoint
+     * @param profile how to use the requests, note that {@link UrbProfile#LOW_LATENCY} halves the size and doubles the number
+     */
+    public UsbHiSpeedBulk(UsbDeviceConnection usbDeviceConnection, UsbEndpoint usbEndpoint, int nrequests, int packetsPerRequests, UrbProfile profile) {
+        this(usbDeviceConnection, usbEndpoint, nrequests, packetsPerRequests, profile, TransferType.of(usbEndpoint));
+    }
+
+    /**
+     * @param nrequests maximum number of requests to allocate
+     * @param packetsPerRequests size of each request in number of max size packets of the endpoint, for
+     *                           isochronous endpoints that is the number of frames and is limited to 128
+     * @param profile how to use the requests, note that {@link UrbProfile#LOW_LATENCY} halves the size and doubles the number
+     * @param transferType the type of the endpoint
+     */
+    public UsbHiSpeedBulk(UsbDeviceConnection usbDeviceConnection, UsbEndpoint usbEndpoint, int nrequests, int packetsPerRequests, UrbProfile profile, TransferType transferType) {
+        if (profile == UrbProfile.LOW_LATENCY) {
+            nrequests *= 2;
+            packetsPerRequests = Math.max(1, packetsPerRequests / 2);
+        }
+        this.iso = transferType == TransferType.ISOCHRONOUS;
+        if (iso) packetsPerRequests = Math.min(MAX_ISO_PACKETS, packetsPerRequests);
         this.fileDescriptor = usbDeviceConnection.getFileDescriptor();
         this.nrequests = nrequests;
         this.requests = new ArrayList<>(nrequests);
-        this.packetSize = usbEndpoint.getMaxPacketSize();
+        this.packetSize = iso ? isoPacketSize(usbEndpoint.getMaxPacketSize()) : usbEndpoint.getMaxPacketSize();
         this.usbEndpoint = usbEndpoint;
         this.packetsPerRequests = packetsPerRequests;
-        this.buffer = new Buffer(packetsPerRequests * packetSize);
+        this.profile = profile;
+        // Room for a packet stitched by the pre-filter from the previous request
+        this.buffer = new Buffer(packetsPerRequests * packetSize + TS_PACKET_SIZE);
+        this.readyIds = new int[nrequests];
+        this.readyLengths = new int[nrequests];
+        this.readyStatuses = new int[nrequests];
+        this.readyTimestamps = new long[nrequests];
+        this.readyFrameErrors = new int[nrequests];
+        this.doneUrbPtrs = new long[nrequests];
+        this.parkedUrbPtrs = new long[nrequests];
     }
 
     // API
@@ -80,9 +171,54 @@ public class UsbHiSpeedBulk {
         IoctlUtils.res(jni_setInterface(fileDescriptor, usbInterface.getUsbInterface().getId(), 0));
     }
 
+    /**
+     * Allows forcing {@link AllocationStrategy#MALLOC} even if the kernel supports mmap,
+     * e.g. for measuring the difference. Takes effect on the next #start.
+     */
+    public void setPreferredAllocationStrategy(AllocationStrategy allocationStrategy) {
+        this.preferredAllocationStrategy = allocationStrategy;
+    }
+
+    /**
+     * @return the strategy used for the URB buffers or null if not started
+     */
+    public AllocationStrategy getAllocationStrategy() {
+        return allocationStrategy;
+    }
+
+    /**
+     * Filter the data in native code before it reaches #read or #readDirect, #transferTo is not filtered.
+     * Takes effect on the next #start.
+     * @param preFilter the filter to use or null to get all the data
+     */
+    public void setPreFilter(TsPreFilter preFilter) {
+        this.preFilter = preFilter;
+    }
+
+    /**
+     * Use the given instance to collect the transfer statistics, e.g. to keep them across restarts
+     */
+    public void setTransferStats(UsbTransferStats transferStats) {
+        this.transferStats = transferStats;
+    }
+
+    /**
+     * @return the per request statistics, can be read from any thread while streaming
+     */
+    public UsbTransferStats getTransferStats() {
+        return transferStats;
+    }
+
     public void start() throws IOException {
+        if (preFilter != null) preFilter.ensureCapacity(packetsPerRequests * packetSize);
+        transferStats.onStarted();
+
+        arena = UrbArena.obtain(fileDescriptor, usbEndpoint.getAddress(), nrequests, packetsPerRequests, packetSize, iso,
+                preferredAllocationStrategy == AllocationStrategy.USBFS_MMAP);
+        allocationStrategy = arena.isMmapped() ? AllocationStrategy.USBFS_MMAP : AllocationStrategy.MALLOC;
+
         for (int i = 0; i < nrequests; i++) {
-            IsoRequest req = new IsoRequest(usbDeviceConnection, usbEndpoint, i, packetsPerRequests, packetSize);
+            IsoRequest req = new IsoRequest(fileDescriptor, arena.getUrbPtr(i));
             try {
                 req.submit();
                 requests.add(req);
@@ -93,7 +229,15 @@ public class UsbHiSpeedBulk {
             }
         }
 
-        if (requests.isEmpty()) throw new IOException("Cannot initialize any USB requests");
+        if (requests.isEmpty()) {
+            arena.release();
+            arena = null;
+            throw new IOException("Cannot initialize any USB requests");
+        }
+
+        // The kernel may not allow all requests to be allocated so tune within what we actually have
+        inFlight = requests.size();
+        tuner = new UrbAutoTuner(profile, requests.size());
     }
 
     /**
@@ -107,18 +251,157 @@ public class UsbHiSpeedBulk {
         IsoRequest req = getReadyRequest(wait);
         if (req == null) return null;
 
-        buffer.length = req.read(buffer.data);
-        req.reset();
-        req.submit();
+        int length = readyLengths[readyPos - 1];
+        if (preFilter != null && preFilter.prepare()) {
+            buffer.length = preFilter.filterRead(req.getUrbPtr(), length, buffer.data);
+        } else {
+            buffer.length = req.read(buffer.data);
+        }
+        jniTransitions++;
+        bytesTransferred += length;
 
         return buffer;
     }
 
+    /**
+     * Zero copy alternative of #read. The returned buffer is a direct view of the native URB memory.
+     * The URB is handed back to the kernel during a subsequent call to #read or #readDirect, so the
+     * buffer must not be used after that.
+     * @param wait whether to block until data is available
+     * @return a direct buffer or null if nothing is available
+     * @throws IOException
+     */
+    public ByteBuffer readDirect(boolean wait) throws IOException {
+        IsoRequest req = getReadyRequest(wait);
+        if (req == null) return null;
+
+        int length = readyLengths[readyPos - 1];
+        bytesTransferred += length;
+
+        if (preFilter != null && preFilter.prepare()) {
+            jniTransitions++;
+            return preFilter.filterDirect(req.getUrbPtr(), length);
+        }
+        return req.readDirect(length);
+    }
+
+    /**
+     * Alternative to #read that writes the data of the next request to a file descriptor from native code,
+     * so it never reaches the Java heap. Packets that span requests are stitched together.
+     * This is a pass-through of the full stream, the pre-filter does not apply.
+     * @param wait whether to block until data is available
+     * @param fd a socket, pipe or file
+     * @return number of bytes written or -1 if nothing was available
+     * @throws IOException if writing fails
+     */
+    public int transferTo(boolean wait, int fd) throws IOException {
+        IsoRequest req = getReadyRequest(wait);
+        if (req == null) return -1;
+
+        int length = readyLengths[readyPos - 1];
+        bytesTransferred += length;
+        jniTransitions++;
+
+        // Even without filtering we need somewhere to keep packets that span requests
+        if (passThroughState == null) passThroughState = new TsPreFilter();
+        return passThroughState.writeTo(req.getUrbPtr(), length, fd, passThroughState.prepare());
+    }
+
     public void stop() throws IOException {
-        for (IsoRequest r : requests) {
-            r.cancel();
+        readyCount = readyPos = doneCount = parkedCount = 0;
+        try {
+            synchronized (cancelLock) {
+                for (IsoRequest r : requests) {
+                    r.cancel();
+                }
+                requests.clear();
+            }
+        } finally {
+            // The kernel writes the result of a request into its URB when it is reaped, so the memory
+            // can only be reused once every discarded request has been reaped
+            if (arena != null) {
+                if (reapOutstanding(inFlight)) {
+                    arena.release();
+                } else {
+                    arena.leak();
+                }
+                arena = null;
+            }
+            inFlight = 0;
+            allocationStrategy = null;
+            if (passThroughState != null) {
+                passThroughState.close();
+                passThroughState = null;
+            }
         }
-        requests.clear();
+    }
+
+    /**
+     * Frees the URB memory kept for reuse by a stopped instance. Call once the device is closed.
+     */
+    public static void releaseIdleMemory() {
+        UrbArena.releaseIdle();
+    }
+
+    /**
+     * @return number of times URB memory was abandoned on #stop because the kernel did not give back all requests
+     */
+    public static long getLeakedArenas() {
+        return UrbArena.getLeakedCount();
+    }
+
+    /**
+     * Discards all requests in flight. A thread blocked in #read or #readDirect will wake up
+     * and get null. No more data will be returned after that, the instance should be stopped.
+     * This is the only method that can be called from a thread different than the reading one.
+     */
+    public void cancel() throws IOException {
+        synchronized (cancelLock) {
+            cancelled = true;
+            for (IsoRequest r : requests) {
+                r.cancel();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return number of requests the tuner currently wants in flight
+     */
+    public int getTargetRequestsInFlight() {
+        return tuner == null ? 0 : tuner.getTargetInFlight();
+    }
+
+    /**
+     * @return number of times all requests in flight completed before being reaped, meaning
+     * the host controller was likely starved of buffers
+     */
+    public long getOverflows() {
+        return tuner == null ? 0 : tuner.getOverflows();
+    }
+
+    /**
+     * @return smoothed time between two request completions in nanoseconds, 0 if not known yet
+     */
+    public double getMeanInterArrivalNs() {
+        return tuner == null ? 0 : tuner.getMeanInterArrivalNs();
+    }
+
+    /**
+     * @return number of JNI calls made for reaping, reading and resubmitting requests since creation
+     */
+    public long getJniTransitions() {
+        return jniTransitions;
+    }
+
+    /**
+     * @return number of bytes received since creation
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
     }
 
     public class Buffer {
@@ -141,9 +424,95 @@ public class UsbHiSpeedBulk {
     // helpers
 
     private IsoRequest getReadyRequest(boolean wait) throws IOException {
-        int readyRequestId = IsoRequest.getReadyRequestId(usbDeviceConnection, wait);
-        if (readyRequestId < 0) return null;
-        return requests.get(readyRequestId);
+        if (readyPos == readyCount) {
+            // The whole batch has been consumed, give it back to the kernel and collect the next one
+            resubmitDone();
+            readyPos = 0;
+            readyCount = 0;
+            // Never block once cancelled, there might be nothing left in flight to wake us up
+            if (cancelled) return null;
+            int reaped = IsoRequest.reapBatch(fileDescriptor, wait, readyIds, readyLengths, readyStatuses, readyTimestamps, readyFrameErrors);
+            jniTransitions++;
+            if (reaped < 0) {
+                // Interrupted by a signal, try again with the next read
+                if (reaped == -EINTR || reaped == -EAGAIN) return null;
+                // The device is gone or usbfs failed, retrying would only spin
+                throw new IOException("Cannot reap requests, errno " + (-reaped));
+            }
+            readyCount = reaped;
+            if (readyCount == 0) return null;
+
+            int requestSize = packetsPerRequests * packetSize;
+            for (int i = 0; i < readyCount; i++) {
+                transferStats.onCompleted(readyStatuses[i], readyLengths[i], requestSize, readyTimestamps[i]);
+                if (iso) transferStats.onIsoFrames(packetsPerRequests, readyFrameErrors[i]);
+            }
+            tuner.onReap(System.nanoTime(), readyCount, inFlight);
+            inFlight -= readyCount;
+        }
+
+        if (cancelled) return null;
+
+        IsoRequest req = requests.get(readyIds[readyPos++]);
+        doneUrbPtrs[doneCount++] = req.getUrbPtr();
+        return req;
+    }
+
+    /**
+     * High bandwidth endpoints can transfer up to 3 packets per microframe, bits 12..11 of
+     * wMaxPacketSize tell how many additional ones there are
+     */
+    static int isoPacketSize(int wMaxPacketSize) {
+        return (wMaxPacketSize & 0x7ff) * (1 + ((wMaxPacketSize >> 11) & 3));
+    }
+
+    private boolean reapOutstanding(int outstanding) {
+        long deadline = System.nanoTime() + STOP_REAP_TIMEOUT_NS;
+        while (outstanding > 0) {
+            int reaped = IsoRequest.reapBatch(fileDescriptor, false, readyIds, readyLengths, readyStatuses, readyTimestamps, readyFrameErrors);
+            // Once the device is gone the kernel has completed and handed out everything it had
+            if (reaped == -ENODEV) return true;
+            if (reaped < 0) return false;
+
+            outstanding -= reaped;
+            if (reaped == 0) {
+                if (System.nanoTime() > deadline) return false;
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void resubmitDone() throws IOException {
+        int count = doneCount;
+        doneCount = 0;
+
+        // Grow or shrink the set of requests in flight towards what the tuner wants
+        int target = tuner.getTargetInFlight();
+        while (count > 0 && inFlight + count > target) {
+            parkedUrbPtrs[parkedCount++] = doneUrbPtrs[--count];
+        }
+        while (parkedCount > 0 && inFlight + count < target) {
+            doneUrbPtrs[count++] = parkedUrbPtrs[--parkedCount];
+        }
+        if (count == 0) return;
+
+        int submitted;
+        synchronized (cancelLock) {
+            // Submitting after a cancel would leave requests in flight that nobody discards
+            if (cancelled) return;
+            submitted = IsoRequest.resubmitBatch(fileDescriptor, doneUrbPtrs, count);
+        }
+        jniTransitions++;
+        // Whatever made it is in flight and has to be reaped before the memory is reused
+        if (submitted > 0) inFlight += submitted;
+        if (submitted < 0) throw new IOException("Cannot resubmit requests, errno " + (-submitted));
+        if (submitted < count) throw new IOException("Only " + submitted + " of " + count + " requests could be resubmitted");
     }
 
     // native
@@ -0,0 +1,161 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.usbxfer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics of the completed USB requests. Updated by the reading thread only but can be
+ * read from any thread at any time without stopping the stream.
+ *
+ * This allows telling apart data lost on USB (failed or short transfers, large gaps between
+ * completions) from data lost over the air (transport errors within otherwise complete transfers).
+ */
+public class UsbTransferStats {
+    /**
+     * Bucket 0 of the histogram counts intervals below 1 us, bucket i counts intervals
+     * in [2^(i-1), 2^i) us and the last bucket counts anything longer
+     */
+    public final static int HISTOGRAM_BUCKETS = 24;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong shortTransfers = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesRequested = new AtomicLong();
+    private final AtomicLong lastCompletionNs = new AtomicLong();
+    private final AtomicLong isoFrames = new AtomicLong();
+    private final AtomicLong isoFrameErrors = new AtomicLong();
+    private volatile int lastErrorStatus;
+    private final AtomicLongArray interArrivalHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    /**
+     * @param status 0 on success or a negative errno
+     * @param actualLength number of bytes received
+     * @param requestedLength size of the request buffer
+     * @param timestampNs monotonic time of completion
+     */
+    void onCompleted(int status, int actualLength, int requestedLength, long timestampNs) {
+        completed.incrementAndGet();
+        bytesReceived.addAndGet(actualLength);
+        bytesRequested.addAndGet(requestedLength);
+
+        if (status != 0) {
+            failed.incrementAndGet();
+            lastErrorStatus = status;
+        } else if (actualLength < requestedLength) {
+            shortTransfers.incrementAndGet();
+        }
+
+        long last = lastCompletionNs.getAndSet(timestampNs);
+        if (last != 0) interArrivalHistogram.incrementAndGet(bucketOf(timestampNs - last));
+    }
+
+    /**
+     * Accounts for the frames of a completed isochronous request
+     */
+    void onIsoFrames(int frames, int errors) {
+        isoFrames.addAndGet(frames);
+        if (errors != 0) isoFrameErrors.addAndGet(errors);
+    }
+
+    /**
+     * A new stream is starting, the gap since the previous one is not an inter-arrival time
+     */
+    void onStarted() {
+        lastCompletionNs.set(0);
+    }
+
+    static int bucketOf(long intervalNs) {
+        long us = Math.max(0, intervalNs / 1_000L);
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us));
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return number of requests that completed with an error status
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return number of successful requests that returned less data than requested
+     */
+    public long getShortTransfers() {
+        return shortTransfers.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getBytesRequested() {
+        return bytesRequested.get();
+    }
+
+    /**
+     * @return number of frames of the isochronous requests, 0 for bulk endpoints
+     */
+    public long getIsoFrames() {
+        return isoFrames.get();
+    }
+
+    /**
+     * @return number of isochronous frames that were dropped because of an error status
+     */
+    public long getIsoFrameErrors() {
+        return isoFrameErrors.get();
+    }
+
+    /**
+     * @return the negative errno of the last failed request or 0 if none failed
+     */
+    public int getLastErrorStatus() {
+        return lastErrorStatus;
+    }
+
+    /**
+     * @return monotonic time in nanoseconds of the last completion or 0 if nothing completed yet
+     */
+    public long getLastCompletionNs() {
+        return lastCompletionNs.get();
+    }
+
+    /**
+     * @return a snapshot of the histogram of the time between two completions, see {@link #HISTOGRAM_BUCKETS}
+     */
+    public long[] getInterArrivalHistogram() {
+        long[] res = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) res[i] = interArrivalHistogram.get(i);
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        return "completed " + getCompleted() + ", failed " + getFailed() + ", short " + getShortTransfers() +
+                ", bytes " + getBytesReceived() + "/" + getBytesRequested() + ", last error " + getLastErrorStatus() +
+                ", iso frame errors " + getIsoFrameErrors() + "/" + getIsoFrames();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package info.martinmarinov.usbxfer;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class UrbAutoTunerTest {
+    private final static long MS = 1_000_000L;
+
+    @Test
+    public void shrinksWhenQueueIsShallow() {
+        UrbAutoTuner tuner = new UrbAutoTuner(UrbProfile.AUTO, 40);
+
+        // one request completes every ms, reaped immediately
+        for (long t = 0; t < 20_000; t++) tuner.onReap(t * MS, 1, tuner.getTargetInFlight());
+
+        assertThat(tuner.getTargetInFlight(), is(4));
+        assertThat(tuner.getOverflows(), is(0L));
+        assertTrue(Math.abs(tuner.getMeanInterArrivalNs() - MS) < 1.0);
+    }
+
+    @Test
+    public void growsOnOverflow() {
+        UrbAutoTuner tuner = new UrbAutoTuner(UrbProfile.AUTO, 40);
+        long t = 0;
+        for (; t < 20_000; t++) tuner.onReap(t * MS, 1, tuner.getTargetInFlight());
+        assertThat(tuner.getTargetInFlight(), is(4));
+
+        // the consumer stalls and finds everything completed
+        for (; t < 21_000; t += 10) tuner.onReap(t * MS, tuner.getTargetInFlight(), tuner.getTargetInFlight());
+
+        assertTrue(tuner.getTargetInFlight() > 4);
+        assertTrue(tuner.getOverflows() > 0);
+    }
+
+    @Test
+    public void neverExceedsWhatWasAllocated() {
+        UrbAutoTuner tuner = new UrbAutoTuner(UrbProfile.LOW_LATENCY, 7);
+        for (long t = 0; t < 20_000; t += 10) tuner.onReap(t * MS, tuner.getTargetInFlight(), tuner.getTargetInFlight());
+
+        assertThat(tuner.getTargetInFlight(), is(7));
+    }
+
+    @Test
+    public void maxThroughputIsFixed() {
+        UrbAutoTuner tuner = new UrbAutoTuner(UrbProfile.MAX_THROUGHPUT, 10);
+        for (long t = 0; t < 10_000; t++) tuner.onReap(t * MS, 1, 10);
+
+        assertThat(tuner.getTargetInFlight(), is(10));
+    }
+}
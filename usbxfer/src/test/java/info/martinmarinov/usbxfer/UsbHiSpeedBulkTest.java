@@ -0,0 +1,35 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.usbxfer;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class UsbHiSpeedBulkTest {
+    @Test
+    public void isoPacketSizeOfHighBandwidthEndpoints() {
+        assertThat(UsbHiSpeedBulk.isoPacketSize(1024), is(1024)); // one transaction per microframe
+        assertThat(UsbHiSpeedBulk.isoPacketSize(0x0800 | 1024), is(2048));
+        assertThat(UsbHiSpeedBulk.isoPacketSize(0x1000 | 1024), is(3072));
+        assertThat(UsbHiSpeedBulk.isoPacketSize(0x1000 | 940), is(2820));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * This is an Android user space port of DVB-T Linux kernel modules.
+ *
+ * Copyright (C) 2022 by Signalware Ltd <driver at aerialtv.eu>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package info.martinmarinov.usbxfer;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class UsbTransferStatsTest {
+    private final static long US = 1_000L;
+
+    @Test
+    public void countsFailedAndShortTransfers() {
+        UsbTransferStats stats = new UsbTransferStats();
+
+        stats.onCompleted(0, 1000, 1000, 1_000 * US);
+        stats.onCompleted(0, 500, 1000, 2_000 * US);
+        stats.onCompleted(-71, 0, 1000, 3_000 * US); // -EPROTO
+
+        assertThat(stats.getCompleted(), is(3L));
+        assertThat(stats.getShortTransfers(), is(1L));
+        assertThat(stats.getFailed(), is(1L));
+        assertThat(stats.getLastErrorStatus(), is(-71));
+        assertThat(stats.getBytesReceived(), is(1500L));
+        assertThat(stats.getBytesRequested(), is(3000L));
+    }
+
+    @Test
+    public void histogramOfInterArrivalTimes() {
+        UsbTransferStats stats = new UsbTransferStats();
+
+        stats.onCompleted(0, 1, 1, 1_000 * US); // first one has nothing to compare with
+        stats.onCompleted(0, 1, 1, 2_000 * US); // 1000 us apart
+        stats.onCompleted(0, 1, 1, 3_000 * US);
+        stats.onStarted();
+        stats.onCompleted(0, 1, 1, 60_000_000 * US); // restarting does not count as a gap
+
+        long[] histogram = stats.getInterArrivalHistogram();
+        assertThat(histogram[UsbTransferStats.bucketOf(1_000 * US)], is(2L));
+        assertThat(histogram[UsbTransferStats.HISTOGRAM_BUCKETS - 1], is(0L));
+
+        assertThat(UsbTransferStats.bucketOf(0), is(0));
+        assertThat(UsbTransferStats.bucketOf(1_000 * US), is(10)); // [512, 1024) us
+        assertThat(UsbTransferStats.bucketOf(Long.MAX_VALUE), is(UsbTransferStats.HISTOGRAM_BUCKETS - 1));
+    }
+}